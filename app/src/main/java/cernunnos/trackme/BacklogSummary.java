@@ -0,0 +1,118 @@
+package cernunnos.trackme;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Summary of the location backlog: its statistics and its newest location.
+ *
+ * It is written with each save of the backlog. After a restart it allows broadcasting the current
+ * state and showing the notification in constant time, before the journal has been replayed.
+ */
+class BacklogSummary {
+    // file header: magic and format version
+    private static final int MAGIC = 0x544d5353; // "TMSS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4;
+
+    // file layout: header, statistics, flag whether the newest location follows, newest location
+    private static final int STATISTICS_SIZE = 4 + 5 * 8 + 8;
+    private static final int LOCATION_SIZE = 8 + 8 + 8 + 4 + 4 + 1 + 1;
+    private static final int FILE_SIZE = HEADER_SIZE + STATISTICS_SIZE + 1 + LOCATION_SIZE;
+
+    // statistics about the backlog
+    final MyLocationList.Statistics statistics;
+    // newest location, null if the backlog is empty
+    final MyLocation last;
+
+    private BacklogSummary(final MyLocationList.Statistics statistics, final MyLocation last) {
+        this.statistics = statistics;
+        this.last = last;
+    }
+
+    /** Writes the summary of the given backlog to the given file, replacing it atomically */
+    static void write(final File file, final MyLocationList locations) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(FILE_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        final MyLocationList.Statistics stats = locations.getStatistics();
+        buffer.putInt(stats.numLocations);
+        buffer.putDouble(stats.distanceTotal);
+        buffer.putDouble(stats.distanceLast);
+        buffer.putDouble(stats.speedAvg);
+        buffer.putDouble(stats.speedLast);
+        buffer.putDouble(stats.speedMax);
+        buffer.putLong(stats.duration);
+        final MyLocation last = locations.getLast();
+        buffer.put((byte)(last != null ? 1 : 0));
+        if (last != null) {
+            buffer.putDouble(last.latitude);
+            buffer.putDouble(last.longitude);
+            buffer.putLong(last.time);
+            buffer.putFloat(last.speed);
+            buffer.putFloat(last.accuracy);
+            buffer.put((byte)(last.hasSpeed ? 1 : 0));
+            buffer.put((byte)(last.hasAccuracy ? 1 : 0));
+        }
+
+        // no need to sync, the journal remains authoritative
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            out.write(buffer.array(), 0, buffer.position());
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("could not rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /** Reads the summary from the given file, returns null if there is none or if it is invalid */
+    static BacklogSummary read(final File file) {
+        final ByteBuffer buffer = ByteBuffer.allocate(FILE_SIZE);
+        try {
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                int n;
+                while (buffer.hasRemaining() && (n = in.read(buffer.array(), buffer.position(), buffer.remaining())) > 0) {
+                    buffer.position(buffer.position() + n);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        buffer.flip();
+        if (buffer.remaining() < HEADER_SIZE + STATISTICS_SIZE + 1 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        final MyLocationList.Statistics statistics = new MyLocationList.Statistics(buffer.getInt(),
+                buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(),
+                buffer.getLong());
+        MyLocation last = null;
+        if (buffer.get() != 0) {
+            if (buffer.remaining() < LOCATION_SIZE) {
+                return null;
+            }
+            last = new MyLocation();
+            last.latitude = buffer.getDouble();
+            last.longitude = buffer.getDouble();
+            last.time = buffer.getLong();
+            last.speed = buffer.getFloat();
+            last.accuracy = buffer.getFloat();
+            last.hasSpeed = buffer.get() != 0;
+            last.hasAccuracy = buffer.get() != 0;
+        }
+        return new BacklogSummary(statistics, last);
+    }
+}
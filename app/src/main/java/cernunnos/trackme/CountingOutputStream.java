@@ -0,0 +1,33 @@
+package cernunnos.trackme;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Output stream which counts the bytes written to the underlying stream */
+class CountingOutputStream extends FilterOutputStream {
+    // number of written bytes
+    private long count = 0;
+
+    CountingOutputStream(final OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        out.write(b);
+        ++count;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        // don't use FilterOutputStream's implementation, it writes byte by byte
+        out.write(b, off, len);
+        count += len;
+    }
+
+    /** Returns the number of bytes written so far */
+    long getCount() {
+        return count;
+    }
+}
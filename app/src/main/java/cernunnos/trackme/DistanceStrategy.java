@@ -0,0 +1,64 @@
+package cernunnos.trackme;
+
+import android.location.Location;
+
+/** Strategies for computing the distance between two locations */
+enum DistanceStrategy {
+    /**
+     * Approximates the ellipsoid locally by a plane, using the WGS84 meridional and normal radii of
+     * curvature at the mean latitude. Doesn't allocate and costs one sin, one cos and two sqrt.
+     *
+     * Meant for consecutive locations. Compared to EXACT the error is below 1 cm for distances up to
+     * 10 km (below 0.2 m up to a latitude of 85 degrees). It grows quadratically with the distance, e.g. to
+     * about 1 m for 50 km, and is thus always far below GPS inaccuracy for consecutive locations.
+     */
+    FAST {
+        @Override
+        double distance(final double latitude1, final double longitude1,
+                        final double latitude2, final double longitude2) {
+            final double meanLatitude = Math.toRadians((latitude1 + latitude2) / 2);
+            final double sinLatitude = Math.sin(meanLatitude);
+            final double w = 1 - WGS84_E2 * sinLatitude * sinLatitude;
+            final double sqrtW = Math.sqrt(w);
+            // radii of curvature in meridian and prime vertical
+            final double meridionalRadius = WGS84_A * (1 - WGS84_E2) / (w * sqrtW);
+            final double normalRadius = WGS84_A / sqrtW;
+
+            double deltaLongitude = longitude2 - longitude1;
+            // handle crossing the antimeridian
+            if (deltaLongitude > 180) {
+                deltaLongitude -= 360;
+            } else if (deltaLongitude < -180) {
+                deltaLongitude += 360;
+            }
+            final double dy = meridionalRadius * Math.toRadians(latitude2 - latitude1);
+            final double dx = normalRadius * Math.cos(meanLatitude) * Math.toRadians(deltaLongitude);
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+    },
+
+    /**
+     * Uses Location.distanceBetween(), i.e. Vincenty's iterative solution on the WGS84 ellipsoid.
+     * Accurate for arbitrary distances but considerably slower and allocates a result array.
+     */
+    EXACT {
+        @Override
+        double distance(final double latitude1, final double longitude1,
+                        final double latitude2, final double longitude2) {
+            float dist[] = new float[1];
+            Location.distanceBetween(latitude1, longitude1, latitude2, longitude2, dist);
+            return dist[0];
+        }
+    };
+
+    // WGS84 semi-major axis in meters
+    private static final double WGS84_A = 6378137.0;
+    // WGS84 flattening
+    private static final double WGS84_F = 1 / 298.257223563;
+    // WGS84 first eccentricity squared
+    private static final double WGS84_E2 = WGS84_F * (2 - WGS84_F);
+
+    /** Computes the distance in meters between two locations */
+    abstract double distance(final double latitude1, final double longitude1,
+                             final double latitude2, final double longitude2);
+}
@@ -0,0 +1,246 @@
+package cernunnos.trackme;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an authenticated FTP control connection open across uploads.
+ *
+ * Connecting, logging in, setting the file type and changing the working directory takes several
+ * round trips. Instead of doing this for each upload the connection is reused if the next upload is
+ * due before the server closes idle connections (see SERVER_IDLE_TIMEOUT_SECS). Nothing is sent
+ * while idle, so the radio can go idle as well, and the connection gets closed once the server
+ * timeout has passed without any upload. Otherwise it gets closed right after the upload. Broken
+ * connections are replaced transparently by acquire().
+ *
+ * Usage: acquire() a client, transfer data, then release() it.
+ */
+class FTPSession {
+    // tag for logging
+    private static final String TAG = FTPSession.class.getSimpleName();
+
+    // time after which servers usually close idle connections, in seconds (e.g. vsftpd's default).
+    // connections are only kept open for uploads within this time.
+    private static final int SERVER_IDLE_TIMEOUT_SECS = 5 * 60;
+
+    // timeout for data connections, in milliseconds
+    private static final int DATA_TIMEOUT_MILLIS = 5 * 1000;
+
+    // connection settings
+    private String server;
+    private int port;
+    private String userName;
+    private String password;
+    private String dir;
+    // interval between uploads, in seconds
+    private long uploadIntervalSecs;
+
+    // current connection, null if disconnected
+    private FTPClient ftp;
+
+    // time of the last upload, see SystemClock.elapsedRealtime()
+    private long lastUseMillis;
+
+    // time the current upload started
+    private long acquireMillis;
+
+    // closes idle connections. its thread must not keep the process alive.
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private ScheduledFuture<?> idleClose;
+
+    // metrics
+    // number of uploads
+    private int numUploads = 0;
+    // number of established connections
+    private int numConnects = 0;
+    // duration of all uploads and of the last one, including connecting if necessary (in milliseconds)
+    private long totalLatencyMillis = 0;
+    private long lastLatencyMillis = 0;
+
+    /**
+     * Sets the connection settings and the interval between uploads in seconds, which decides whether
+     * connections are kept open. Closes the current connection if the settings have changed.
+     */
+    synchronized void configure(final String server, final int port, final String userName,
+                                final String password, final String dir, final long uploadIntervalSecs) {
+        final boolean changed = !server.equals(this.server) || port != this.port ||
+                !userName.equals(this.userName) || !password.equals(this.password) || !dir.equals(this.dir);
+        this.server = server;
+        this.port = port;
+        this.userName = userName;
+        this.password = password;
+        this.dir = dir;
+        this.uploadIntervalSecs = uploadIntervalSecs;
+        if (changed) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Returns a client which is logged in and inside the upload directory.
+     * Reuses the current connection if it is still alive, otherwise a new one gets established.
+     * Must be followed by a call to release().
+     */
+    synchronized FTPClient acquire() throws IOException {
+        acquireMillis = SystemClock.elapsedRealtime();
+        cancelIdleClose();
+
+        if (ftp != null) {
+            try {
+                if (ftp.sendNoOp()) {
+                    Log.v(TAG, "acquire(): reusing connection");
+                    return ftp;
+                }
+                Log.v(TAG, "acquire(): connection broken, code: " + ftp.getReplyCode());
+            } catch (IOException e) {
+                Log.v(TAG, "acquire(): connection broken: " + e.getMessage());
+            }
+            disconnect();
+        }
+
+        connect();
+        return ftp;
+    }
+
+    /**
+     * Finishes an upload. Set success to false if an error occurred, the connection will be closed
+     * in this case. Otherwise it will be kept open for the next upload if that is due before the
+     * server's idle timeout.
+     */
+    synchronized void release(final boolean success) {
+        lastUseMillis = SystemClock.elapsedRealtime();
+        lastLatencyMillis = lastUseMillis - acquireMillis;
+        totalLatencyMillis += lastLatencyMillis;
+        ++numUploads;
+        Log.i(TAG, "release(): upload " + (success ? "succeeded" : "failed") + " after " + lastLatencyMillis + " ms, " +
+                "average " + getAverageLatencyMillis() + " ms, connection reuse ratio " + getReuseRatio());
+
+        if (!success) {
+            disconnect();
+            return;
+        }
+        if (uploadIntervalSecs >= SERVER_IDLE_TIMEOUT_SECS) {
+            Log.v(TAG, "release(): next upload not before the server's idle timeout, closing connection");
+            close();
+            return;
+        }
+        scheduleIdleClose();
+    }
+
+    /** Closes the connection */
+    synchronized void close() {
+        cancelIdleClose();
+        if (ftp != null) {
+            try {
+                ftp.logout();
+            } catch (IOException e) {
+                Log.v(TAG, "close(): logout failed: " + e.getMessage());
+            }
+            disconnect();
+        }
+    }
+
+    /** Returns the fraction of uploads which reused an existing connection */
+    synchronized double getReuseRatio() {
+        return numUploads == 0 ? 0.0 : (double)Math.max(numUploads - numConnects, 0) / numUploads;
+    }
+
+    /** Returns the average duration of an upload in milliseconds, including connecting if necessary */
+    synchronized long getAverageLatencyMillis() {
+        return numUploads == 0 ? 0 : totalLatencyMillis / numUploads;
+    }
+
+    /** Returns the duration of the last upload in milliseconds, including connecting if necessary */
+    synchronized long getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    /** Connects, logs in, sets the file type and changes to the upload directory */
+    private void connect() throws IOException {
+        ftp = new FTPClient();
+        ftp.setDataTimeout(DATA_TIMEOUT_MILLIS);
+        ++numConnects;
+        try {
+            ftp.connect(server, port);
+            if (!FTPReply.isPositiveCompletion(ftp.getReplyCode())) {
+                throw new IOException("FTP server refused connection, code: " + ftp.getReplyCode());
+            }
+            Log.v(TAG, "connect(): connected to FTP server");
+
+            if (!ftp.login(userName, password)) {
+                throw new IOException("FTP login failed, wrong credentials? code: " + ftp.getReplyCode());
+            }
+            // binary mode transfers our bytes as they are, thus the server file size matches the
+            // number of uploaded bytes. required for compact upload formats anyway.
+            if (!ftp.setFileType(FTP.BINARY_FILE_TYPE)) {
+                throw new IOException("could not set file type, code: " + ftp.getReplyCode());
+            }
+            if (!ftp.changeWorkingDirectory(dir)) {
+                throw new IOException("could not change working directory to " + dir + ", wrong path? code: " + ftp.getReplyCode());
+            }
+            ftp.enterLocalPassiveMode();
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /** Closes the connection without logging out */
+    private void disconnect() {
+        cancelIdleClose();
+        if (ftp == null) {
+            return;
+        }
+        if (ftp.isConnected()) {
+            try {
+                ftp.disconnect();
+            } catch (IOException e) {
+                // nothing we can do about it
+            }
+        }
+        ftp = null;
+    }
+
+    /** Closes the connection once the server's idle timeout has passed without any upload */
+    private void scheduleIdleClose() {
+        cancelIdleClose();
+        idleClose = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FTPSession.this) {
+                    final long idleMillis = SystemClock.elapsedRealtime() - lastUseMillis;
+                    if (ftp != null && idleMillis >= SERVER_IDLE_TIMEOUT_SECS * 1000L) {
+                        Log.v(TAG, "idle timeout reached, closing connection");
+                        close();
+                    }
+                }
+            }
+        }, SERVER_IDLE_TIMEOUT_SECS, TimeUnit.SECONDS);
+    }
+
+    /** Cancels closing the idle connection */
+    private void cancelIdleClose() {
+        if (idleClose != null) {
+            idleClose.cancel(false);
+            idleClose = null;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package cernunnos.trackme;
+
+import android.util.Log;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Uploads locations via FTP.
+ *
+ * If the server file already contains the beginning of our location list then only new locations
+ * are appended to it. Otherwise, e.g. after clearing all locations or after dropping old locations,
+ * the whole file is rewritten.
+ *
+ * Uploads can be gzip compressed. The server file gets the suffix ".gz" in this case and is always
+ * rewritten: a file with appended gzip members is valid but not decoded completely by all browsers.
+ */
+class FTPUploader implements Uploader {
+    // tag for logging
+    private static final String TAG = FTPUploader.class.getSimpleName();
+
+    // suffix of compressed server files
+    private static final String COMPRESSED_SUFFIX = ".gz";
+
+    // connection, kept alive across uploads
+    private final FTPSession session;
+
+    // settings
+    private final String server;
+    private final int port;
+    private final String dir;
+    private final String filename;
+    private final LocationEncoder.Format format;
+    private final boolean compressed;
+
+    /**
+     * Creates a new uploader using the given session, which gets configured accordingly.
+     * The interval between uploads (in seconds) decides whether the connection is kept open.
+     */
+    FTPUploader(final FTPSession session, final String server, final int port, final String userName,
+                final String password, final String dir, final String filename,
+                final LocationEncoder.Format format, final boolean compressed, final long uploadIntervalSecs) {
+        this.session = session;
+        this.server = server;
+        this.port = port;
+        this.dir = dir;
+        this.filename = filename;
+        this.format = format;
+        this.compressed = compressed;
+        session.configure(server, port, userName, password, dir, uploadIntervalSecs);
+    }
+
+    @Override
+    public String getTarget() {
+        return "ftp://" + server + ":" + port + "/" + dir + "/" + remoteFilename() + " (" + format + ")";
+    }
+
+    @Override
+    public void upload(final MyLocationList locations, final UploadState state) throws IOException {
+        int firstIndex = state.alreadyUploaded(locations);
+        if (firstIndex == locations.size()) {
+            Log.v(TAG, "upload(): all " + firstIndex + " locations already uploaded");
+            return;
+        }
+        if (compressed) {
+            // compressed files are always rewritten, see class documentation
+            firstIndex = -1;
+        }
+
+        final FTPClient ftp = session.acquire();
+        boolean success = false;
+        try {
+            if (firstIndex > 0 && !remoteFileSizeMatches(ftp, state.bytes)) {
+                Log.i(TAG, "upload(): server file has been modified, rewriting it");
+                firstIndex = -1;
+            }
+            final boolean append = firstIndex > 0;
+            if (!append) {
+                firstIndex = 0;
+            }
+            final String name = remoteFilename();
+            OutputStream file = append ? ftp.appendFileStream(name) : ftp.storeFileStream(name);
+            if (file == null) {
+                throw new IOException("could not open file " + name + ", code: " + ftp.getReplyCode());
+            }
+            // forget about the server file content until the upload has been completed
+            final long prevBytes = append ? state.bytes : 0;
+            state.invalidate();
+
+            // locations are encoded and compressed while uploading them, without buffering the whole file
+            final CountingOutputStream transferred = new CountingOutputStream(file);
+            final OutputStream out = compressed ? LocationEncoder.compress(transferred) : transferred;
+            final long bytes = new LocationEncoder(format).write(locations, firstIndex, out);
+            out.close();
+            if (!ftp.completePendingCommand()) {
+                throw new IOException("could not upload file, code: " + ftp.getReplyCode());
+            }
+            state.update(locations, prevBytes + transferred.getCount(), null);
+            success = true;
+            Log.v(TAG, "upload(): file upload with " + (locations.size() - firstIndex) + " locations (" +
+                    bytes + " bytes, " + (compressed ? transferred.getCount() + " bytes compressed, " : "") +
+                    (append ? "appended" : "rewritten") + ") succeeded");
+        } finally {
+            // keep the connection for the next upload unless something went wrong
+            session.release(success);
+        }
+    }
+
+    @Override
+    public void close() {
+        session.close();
+    }
+
+    /** Returns the name of the server file */
+    private String remoteFilename() {
+        return compressed ? filename + COMPRESSED_SUFFIX : filename;
+    }
+
+    /**
+     * Returns true if the size of the server file matches the expected size.
+     * Returns true as well if the server doesn't tell us the size.
+     */
+    private boolean remoteFileSizeMatches(final FTPClient ftp, final long expectedSize) throws IOException {
+        if (ftp.sendCommand("SIZE", remoteFilename()) != FTPReply.FILE_STATUS) {
+            Log.v(TAG, "remoteFileSizeMatches(): size unknown, code: " + ftp.getReplyCode());
+            return true;
+        }
+        final String[] reply = ftp.getReplyString().trim().split(" ");
+        try {
+            final long size = Long.parseLong(reply[reply.length - 1]);
+            Log.v(TAG, "remoteFileSizeMatches(): size " + size + ", expected " + expectedSize);
+            return size == expectedSize;
+        } catch (NumberFormatException e) {
+            Log.v(TAG, "remoteFileSizeMatches(): invalid reply: " + ftp.getReplyString());
+            return true;
+        }
+    }
+}
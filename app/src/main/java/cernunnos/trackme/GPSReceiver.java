@@ -2,20 +2,30 @@ package cernunnos.trackme;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
+import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.TaskStackBuilder;
 import android.support.v4.content.ContextCompat;
@@ -24,15 +34,18 @@ import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
-
-/** Receives and manages locations */
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Receives and manages locations.
+ *
+ * All work, i.e. handling intents and location updates, reading and writing the backlog as well as
+ * computing statistics and building notifications, happens on a separate worker thread. Other
+ * components only receive immutable copies of our data.
+ */
 public class GPSReceiver extends Service implements LocationListener {
     // tag for logging
     private static final String TAG = GPSReceiver.class.getSimpleName();
@@ -53,22 +66,98 @@ public class GPSReceiver extends Service implements LocationListener {
     private static final String ACTION_DELETE_ALL_LOCATIONS = "action.delete_all_locations";
     // re-read settings
     private static final String ACTION_REREAD_SETTINGS = "action.reread_settings";
+    // upload all locations
+    private static final String ACTION_UPLOAD_LOCATIONS = "action.upload_locations";
+    // wakeup requested by the sampling controller
+    private static final String ACTION_SAMPLING_WAKEUP = "action.sampling_wakeup";
 
     // parameters
-    // a list of locations
-    public static final String EXTRA_PARAM_LOCATION_LIST = "extra.location_list";
+    // the newest location, null if there are no locations
+    public static final String EXTRA_PARAM_LOCATION = "extra.location";
+    // statistics about all locations
+    public static final String EXTRA_PARAM_STATISTICS = "extra.statistics";
     // boolean about the current GPS provider state
     public static final String EXTRA_PARAM_GPS_PROVIDER = "extra.gps_provider";
 
     // files
-    // location backlog
+    // location backlog (legacy format, replaced by FILE_LOCATION_JOURNAL)
     private static final String FILE_LOCATION_BACKLOG = "locationBacklog";
+    // journal of location backlog modifications
+    private static final String FILE_LOCATION_JOURNAL = "locationJournal";
+    // summary of the location backlog, see BacklogSummary
+    private static final String FILE_BACKLOG_SUMMARY = "backlogSummary";
+    // directory of finished segments, see SegmentStore
+    private static final String DIR_SEGMENTS = "segments";
+    // directory for older locations of the backlog exceeding BACKLOG_MEMORY_BUDGET
+    private static final String DIR_BACKLOG_SPILL = "backlog";
+
+    // when to start a new segment, see R.array.pref_recording_split_values
+    private static final String SPLIT_SESSION = "session";
+    private static final String SPLIT_DAY = "day";
+
+    // maximum interval of adaptive sampling if no minimum duration has been configured
+    private static final long ADAPTIVE_MAX_INTERVAL_MILLIS = 60 * 1000;
+
+    // minimum duration of a stay, shorter ones are not recorded, see StayPointDetector
+    private static final long STAY_MIN_DURATION_MILLIS = 5 * 60 * 1000;
+
+    // interval of coarse location updates for detecting movement while GPS is suspended
+    private static final long COARSE_INTERVAL_MILLIS = 60 * 1000;
+
+    // memory for the backlog's locations, older ones are spilled to storage (about 30000 locations)
+    private static final int BACKLOG_MEMORY_BUDGET = 1024 * 1024;
+
+    // number of unsaved journal records after which they are saved regardless of the save interval
+    private static final int SAVE_MAX_PENDING_RECORDS = 500;
 
     // keeps state about whether this service is currently receiving location updates
-    public static boolean isRecording = false;
+    public static volatile boolean isRecording = false;
+
+    // worker thread and its handler
+    protected HandlerThread workerThread;
+    protected Handler workerHandler;
+
+    // handler for the main thread
+    protected Handler mainHandler;
 
     protected LocationManager locationManager;
 
+    // detects movement while GPS updates are suspended by the sampling controller
+    protected final LocationListener coarseListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(final Location location) {
+            Log.v(TAG, "coarseListener.onLocationChanged()");
+            if (location != null && sampling != null &&
+                    sampling.onCoarseLocation(new MyLocation(location), SystemClock.elapsedRealtime())) {
+                applySampling();
+            }
+        }
+
+        @Override
+        public void onStatusChanged(String s, int i, Bundle bundle) {
+        }
+
+        @Override
+        public void onProviderEnabled(String s) {
+        }
+
+        @Override
+        public void onProviderDisabled(String s) {
+        }
+    };
+
+    // retries failed uploads once the network is available again
+    protected final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(final Context context, final Intent intent) {
+            final ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+            final NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+            if (network != null && network.isConnected()) {
+                UploadService.startActionRetryUpload(context);
+            }
+        }
+    };
+
     // minimum time interval between location updates, in seconds
     // can be 0 for considering only cMinDistanceMeters
     protected int cMinTimeSecs;
@@ -84,17 +173,63 @@ public class GPSReceiver extends Service implements LocationListener {
     // minimum time between uploading if locations in seconds
     protected long cUploadIntervalSecs;
 
-    // minimum time between saving of locations to storage in minutes
-    protected final int saveIntervalMins = 2;
+    // tolerance for simplifying the recorded track, in meters
+    // can be 0 for keeping all locations
+    protected float cSimplifyToleranceMeters;
+
+    // radius for combining locations into a stay, in meters
+    // can be 0 for keeping all locations
+    protected float cStayRadiusMeters;
+
+    // when to start a new segment: per recording session, per day or never
+    protected String cSplitTracks;
+
+    // whether to smooth locations and drop outliers, see LocationFilter
+    protected boolean cSmoothing;
+
+    // whether to adapt the update interval to the movement, see SamplingController
+    protected boolean cAdaptiveSampling;
+
+    // maximum time locations are kept in memory only before saving them to storage in seconds
+    protected long cSaveIntervalSecs;
 
     // backlog of locations (first entry = oldest, last entry = newest)
     protected MyLocationList lastLocations = new MyLocationList();
 
+    // journal for storing the location backlog
+    protected LocationJournal journal;
+
+    // finished segments, the backlog is the active one
+    protected SegmentStore segmentStore;
+
+    // summary of the backlog while it is being restored, null otherwise
+    protected BacklogSummary restoringSummary;
+
+    // drops redundant locations, null if disabled
+    protected TrackSimplifier simplifier;
+
+    // smooths locations and drops outliers, null if disabled
+    protected LocationFilter filter;
+
+    // combines locations while staying at one place, null if disabled
+    protected StayPointDetector stayDetector;
+
+    // adapts the update interval while recording, null if disabled
+    protected SamplingController sampling;
+
     // time of last upload of locations
     protected long lastUploadMillis = 0;
 
-    // time of last saving of locations to storage
-    protected long lastSaveMillis = 0;
+    // whether saving to storage has been scheduled, see saveRunnable
+    protected boolean saveScheduled = false;
+
+    // saves locations to storage once the save interval has passed
+    protected final Runnable saveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveProgressToStorage(true /* force */);
+        }
+    };
 
     public GPSReceiver() {
     }
@@ -103,10 +238,23 @@ public class GPSReceiver extends Service implements LocationListener {
     public void onCreate() {
         Log.v(TAG, "onCreate()");
 
-        restoreState();
+        mainHandler = new Handler(Looper.getMainLooper());
+        workerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        workerThread.start();
+        workerHandler = new Handler(workerThread.getLooper());
 
-        // send broadcast message with location backlog from storage
-        sendLocationBroadcast();
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        // restore asynchronously, intents will be handled afterwards
+        workerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                restoreState();
+
+                // send broadcast message with location backlog from storage
+                sendLocationBroadcast();
+            }
+        });
     }
 
     /**
@@ -114,11 +262,20 @@ public class GPSReceiver extends Service implements LocationListener {
      */
     protected void restoreState() {
         Log.v(TAG, "restoreState()");
+        final long startMillis = SystemClock.elapsedRealtime();
 
         readSettings();
 
-        // (try to) read last location backlog from internal storage
-        restoreProgressFromStorage();
+        // show the backlog's summary and continue recording before restoring the backlog itself,
+        // which takes time proportional to its size. location updates are delivered to this thread,
+        // thus they are handled once the backlog is complete.
+        restoringSummary = BacklogSummary.read(getFileStreamPath(FILE_BACKLOG_SUMMARY));
+        if (restoringSummary != null) {
+            sendLocationBroadcast();
+        } else {
+            // no summary yet, e.g. after updating the app
+            restoreProgressFromStorage();
+        }
 
         // killed while recording, automatically continue
         if (isRecording) {
@@ -128,6 +285,15 @@ public class GPSReceiver extends Service implements LocationListener {
 
             startRecording();
         }
+        Log.i(TAG, "restoreState(): recording state restored after " + (SystemClock.elapsedRealtime() - startMillis) + "ms");
+
+        if (restoringSummary != null) {
+            // (try to) read last location backlog from internal storage
+            restoreProgressFromStorage();
+            restoringSummary = null;
+        }
+        Log.i(TAG, "restoreState(): " + lastLocations.size() + " locations restored after " +
+                (SystemClock.elapsedRealtime() - startMillis) + "ms");
     }
 
     /**
@@ -158,12 +324,50 @@ public class GPSReceiver extends Service implements LocationListener {
                 getString(R.string.pref_recording_default_max_locations)));
         cUploadIntervalSecs = Long.parseLong(sharedPref.getString(getString(R.string.preference_uploading_interval),
                 getString(R.string.pref_upload_default_interval)));
+        cSaveIntervalSecs = Long.parseLong(sharedPref.getString(getString(R.string.preference_recording_save_interval),
+                getString(R.string.pref_recording_default_save_interval)));
+        final float simplifyTolerance = Float.parseFloat(sharedPref.getString(getString(R.string.preference_recording_simplify_tolerance),
+                getString(R.string.pref_recording_default_simplify_tolerance)));
+        if (simplifier == null || simplifyTolerance != cSimplifyToleranceMeters) {
+            cSimplifyToleranceMeters = simplifyTolerance;
+            simplifier = cSimplifyToleranceMeters > 0 ? new TrackSimplifier(cSimplifyToleranceMeters) : null;
+        }
+        final float stayRadius = Float.parseFloat(sharedPref.getString(getString(R.string.preference_recording_stay_radius),
+                getString(R.string.pref_recording_default_stay_radius)));
+        if (stayDetector == null || stayRadius != cStayRadiusMeters) {
+            cStayRadiusMeters = stayRadius;
+            stayDetector = cStayRadiusMeters > 0 ? new StayPointDetector(cStayRadiusMeters, STAY_MIN_DURATION_MILLIS) : null;
+        }
+        cSplitTracks = sharedPref.getString(getString(R.string.preference_recording_split),
+                getString(R.string.pref_recording_default_split));
+        cSmoothing = sharedPref.getBoolean(getString(R.string.preference_recording_smoothing), false);
+        if (!cSmoothing) {
+            filter = null;
+        } else if (filter == null) {
+            filter = new LocationFilter();
+        }
+        cAdaptiveSampling = sharedPref.getBoolean(getString(R.string.preference_recording_adaptive_sampling), false);
+        final long maxIntervalMillis = cMinTimeSecs > 0 ? cMinTimeSecs * 1000L : ADAPTIVE_MAX_INTERVAL_MILLIS;
+        if (!cAdaptiveSampling) {
+            if (sampling != null) {
+                stopSampling();
+                sampling = null;
+            }
+        } else if (sampling == null) {
+            sampling = new SamplingController(maxIntervalMillis);
+            sampling.start(SystemClock.elapsedRealtime());
+        } else {
+            sampling.setMaxIntervalMillis(maxIntervalMillis);
+        }
 
         isRecording = sharedPref.getBoolean(getString(R.string.preference_recording_enabled), false);
 
         Log.v(TAG, "readSettings(): minTime: " + cMinTimeSecs + "s, minDist: " + cMinDistanceMeters + "m, " +
                 "max locations: " + cMaxLocations + ", upload interval: " + cUploadIntervalSecs + "s, " +
-                "recording: " + isRecording);
+                "save interval: " + cSaveIntervalSecs + "s, " +
+                "simplify tolerance: " + cSimplifyToleranceMeters + "m, stay radius: " + cStayRadiusMeters +
+                "m, split tracks: " + cSplitTracks + ", smoothing: " + cSmoothing +
+                ", adaptive sampling: " + cAdaptiveSampling + ", recording: " + isRecording);
     }
 
     /**
@@ -181,11 +385,16 @@ public class GPSReceiver extends Service implements LocationListener {
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
+    public int onStartCommand(final Intent intent, int flags, int startId) {
         Log.v(TAG, "onStartCommand()");
         // as a service we must call this ourselves
         if (intent != null && intent.getAction() != null) {
-            onHandleIntent(intent);
+            workerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onHandleIntent(intent);
+                }
+            });
         }
 
         return Service.START_STICKY;
@@ -198,9 +407,18 @@ public class GPSReceiver extends Service implements LocationListener {
 
         if (locationManager != null) {
             locationManager.removeUpdates(this);
+            locationManager.removeUpdates(coarseListener);
         }
-
-        storeState();
+        unregisterReceiver(connectivityReceiver);
+
+        // store state after all pending work has been done, then terminate the worker thread
+        workerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                storeState();
+                Looper.myLooper().quit();
+            }
+        });
     }
 
     @Override
@@ -229,6 +447,9 @@ public class GPSReceiver extends Service implements LocationListener {
         Log.v(TAG, "onHandleIntent(): action " + action);
         switch (action) {
             case ACTION_START_RECORDING:
+                if (!isRecording && SPLIT_SESSION.equals(cSplitTracks)) {
+                    startNewSegment();
+                }
                 startRecording();
                 break;
             case ACTION_STOP_RECORDING:
@@ -249,6 +470,14 @@ public class GPSReceiver extends Service implements LocationListener {
                     requestLocationUpdates(true /* continuous */);
                 }
                 break;
+            case ACTION_UPLOAD_LOCATIONS:
+                uploadProgress(true /* force */);
+                break;
+            case ACTION_SAMPLING_WAKEUP:
+                if (isRecording && sampling != null && sampling.onWakeup(SystemClock.elapsedRealtime())) {
+                    applySampling();
+                }
+                break;
             default:
                 Log.e(TAG, "onHandleIntent(): invalid action: " + action);
                 break;
@@ -263,6 +492,9 @@ public class GPSReceiver extends Service implements LocationListener {
         writeSettings();
 
         startForeground(NOTIFICATION_ID, buildNotification());
+        if (sampling != null) {
+            sampling.start(SystemClock.elapsedRealtime());
+        }
         requestLocationUpdates(true /* continuous */);
     }
 
@@ -276,6 +508,14 @@ public class GPSReceiver extends Service implements LocationListener {
         if (locationManager != null) {
             locationManager.removeUpdates(this);
         }
+        if (sampling != null) {
+            sampling.stop(SystemClock.elapsedRealtime());
+            stopSampling();
+        }
+        if (stayDetector != null) {
+            stayDetector.finish();
+            storeEndedRun();
+        }
 
         storeState();
 
@@ -289,10 +529,35 @@ public class GPSReceiver extends Service implements LocationListener {
         Log.v(TAG, "onLocationChanged()");
         if (location != null) {
             // update backlog
-            if (cMaxLocations > 0 && lastLocations.size() + 1 >= cMaxLocations) {
-                lastLocations.removeFirst();
+            final MyLocation myLocation = new MyLocation(location);
+            if (isRecording && filter != null && !filter.filter(myLocation)) {
+                Log.v(TAG, "onLocationChanged(): outlier dropped, rejected ratio: " + filter.getRejectedRatio());
+                return;
+            }
+            if (isRecording && sampling != null) {
+                if (sampling.onLocation(myLocation, SystemClock.elapsedRealtime())) {
+                    applySampling();
+                }
+                // updates are requested without minimum distance, see requestLocationUpdates()
+                if (cMinDistanceMeters > 0 && lastLocations.size() > 0 &&
+                        myLocation.distanceTo(lastLocations.getLast()) < cMinDistanceMeters) {
+                    Log.v(TAG, "onLocationChanged(): below minimum distance, dropped");
+                    return;
+                }
             }
-            lastLocations.addLast(new MyLocation(location));
+            if (SPLIT_DAY.equals(cSplitTracks) && lastLocations.size() > 0 &&
+                    localDay(lastLocations.getLast().time) != localDay(myLocation.time)) {
+                startNewSegment();
+            }
+            if (isRecording && stayDetector != null) {
+                if (stayDetector.add(myLocation)) {
+                    // no need to save, broadcast or upload anything
+                    Log.v(TAG, "onLocationChanged(): staying, " + stayDetector.getNumSuppressed() + " locations suppressed");
+                    return;
+                }
+                storeEndedRun();
+            }
+            storeLocation(myLocation);
         } // else continue, we have been called from deleteLocations()
 
         // we just wanted to obtain a single location
@@ -308,7 +573,8 @@ public class GPSReceiver extends Service implements LocationListener {
         // save to storage if save interval reached or called from deleteLocations()
         saveProgressToStorage(forceSaving);
 
-        // send broadcast message with location backlog
+        // send broadcast message with the new location or, if called from deleteLocations(),
+        // with the now empty location backlog
         sendLocationBroadcast();
 
         // update status bar if we have a new location but only if tracking is enabled,
@@ -322,11 +588,115 @@ public class GPSReceiver extends Service implements LocationListener {
         uploadProgress(forceSaving);
     }
 
-    /** Send broadcast message with location backlog */
+    /** Store a new location, it either replaces the previous one if that is redundant or gets appended */
+    protected void storeLocation(final MyLocation location) {
+        if (simplifier != null && simplifier.add(location) && lastLocations.size() > 0) {
+            // previous location is redundant
+            lastLocations.replaceLast(location);
+            journal.replaceLast(location);
+            Log.v(TAG, "storeLocation(): simplified, retained ratio: " + simplifier.getRetainedRatio() +
+                    ", max deviation: " + simplifier.getMaxDeviation() + "m");
+        } else {
+            appendLocation(location);
+        }
+    }
+
+    /** Append a location to the backlog, dropping the oldest one if the backlog is full */
+    protected void appendLocation(final MyLocation location) {
+        if (cMaxLocations > 0 && lastLocations.size() + 1 >= cMaxLocations) {
+            lastLocations.removeFirst();
+            journal.removeFirst();
+        }
+        lastLocations.addLast(location);
+        journal.append(location);
+    }
+
+    /**
+     * Finish the active segment: upload it a last time, move its locations into the segment store
+     * and continue with an empty backlog. Nothing happens if the backlog is empty.
+     */
+    protected void startNewSegment() {
+        Log.v(TAG, "startNewSegment()");
+        if (stayDetector != null) {
+            stayDetector.finish();
+            storeEndedRun();
+        }
+        if (lastLocations.size() == 0) {
+            return;
+        }
+        uploadProgress(true /* force */);
+        try {
+            final SegmentStore.Segment segment = segmentStore.add(lastLocations);
+            Log.i(TAG, "startNewSegment(): stored segment " + segment.id + " with " + segment.numLocations + " locations");
+        } catch (java.io.IOException e) {
+            // keep the backlog, we will try again with the next segment
+            e.printStackTrace();
+            return;
+        }
+        lastLocations.clear();
+        try {
+            journal.clear();
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+        }
+        if (simplifier != null) {
+            simplifier.reset();
+        }
+        sendLocationBroadcast();
+    }
+
+    /** Return the number of the local day of the given time, for detecting changes of the day */
+    protected static long localDay(final long time) {
+        return (time + TimeZone.getDefault().getOffset(time)) / (24 * 60 * 60 * 1000);
+    }
+
+    /**
+     * Store the result of a run which the stay detector has just ended: either the stay or the
+     * locations held back during a shorter stop.
+     */
+    protected void storeEndedRun() {
+        if (stayDetector.stayEnded()) {
+            storeStay();
+            return;
+        }
+        final List<MyLocation> released = stayDetector.getReleased();
+        for (int i = 0; i < released.size(); ++i) {
+            storeLocation(released.get(i));
+        }
+    }
+
+    /**
+     * Store the stay which has just ended: the stay's centroid gets appended at the arrival and at the
+     * departure time, after the arrival location, i.e. the newest one in the backlog. The arrival
+     * location is kept since it might have been uploaded already. The locations in between have
+     * never been stored.
+     */
+    protected void storeStay() {
+        final StayPointDetector.Stay stay = stayDetector.getStay();
+        Log.i(TAG, "storeStay(): combined " + stay.count + " locations during " + (stay.end - stay.start) / 1000 + "s");
+        if (lastLocations.size() == 0) {
+            return;
+        }
+        appendLocation(new MyLocation(stay.latitude, stay.longitude, stay.start, true, 0.0f, false, 0.0f));
+        appendLocation(new MyLocation(stay.latitude, stay.longitude, stay.end, true, 0.0f, false, 0.0f));
+
+        // neither the arrival nor the departure must be simplified away
+        if (simplifier != null) {
+            simplifier.reset();
+        }
+    }
+
+    /**
+     * Send broadcast message with the newest location and statistics about the location backlog.
+     * The backlog itself is never sent, receivers get a copy of the newest location and immutable
+     * statistics instead. Both describe all locations, so receivers can replace everything they show,
+     * e.g. after clearing all locations.
+     */
     protected void sendLocationBroadcast() {
         Log.v(TAG, "sendLocationBroadcast()");
         Intent intent = new Intent(GPSReceiver.class.getSimpleName());
-        intent.putExtra(EXTRA_PARAM_LOCATION_LIST, (Parcelable)lastLocations);
+        intent.putExtra(EXTRA_PARAM_LOCATION, (Parcelable)(restoringSummary != null ? restoringSummary.last : lastLocations.getLast()));
+        intent.putExtra(EXTRA_PARAM_STATISTICS, getStatistics());
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
     }
 
@@ -334,6 +704,21 @@ public class GPSReceiver extends Service implements LocationListener {
     protected void deleteLocations() {
         Log.v(TAG, "deleteLocations()");
         lastLocations.clear();
+        if (simplifier != null) {
+            simplifier.reset();
+        }
+        if (filter != null) {
+            filter.reset();
+        }
+        if (stayDetector != null) {
+            stayDetector.reset();
+        }
+        try {
+            journal.clear();
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+        }
+        segmentStore.clear();
         onLocationChanged(null);
     }
 
@@ -372,8 +757,13 @@ public class GPSReceiver extends Service implements LocationListener {
         Log.v(TAG, "requestLocationUpdates(): continuous " + continuous);
 
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            Toast toast = Toast.makeText(getApplicationContext(), R.string.toast_location_permissions_missing, Toast.LENGTH_LONG);
-            toast.show();
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast toast = Toast.makeText(getApplicationContext(), R.string.toast_location_permissions_missing, Toast.LENGTH_LONG);
+                    toast.show();
+                }
+            });
             return;
         }
 
@@ -381,10 +771,75 @@ public class GPSReceiver extends Service implements LocationListener {
             locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
         }
 
+        long minTimeMillis = cMinTimeSecs * 1000L;
+        float minDistanceMeters = cMinDistanceMeters;
+        if (isRecording && sampling != null) {
+            if (continuous && sampling.isSuspended()) {
+                locationManager.removeUpdates(this);
+                return;
+            }
+            // the sampling controller needs all locations for detecting whether we are stationary,
+            // the minimum distance is applied by onLocationChanged() instead
+            minTimeMillis = sampling.getIntervalMillis();
+            minDistanceMeters = 0;
+        }
+
         // always request continuous updates. while there is requestSingleUpdate() for single locations
         // it will break continuous updates if we are already recording. instead we will stop continuous
         // updates depending on 'isRecording'.
-        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, cMinTimeSecs * 1000, cMinDistanceMeters, this);
+        // location updates are delivered on the worker thread.
+        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, minTimeMillis, minDistanceMeters, this,
+                workerThread.getLooper());
+    }
+
+    /**
+     * Apply a changed state of the sampling controller: re-request or suspend GPS updates, detect
+     * movement by coarse locations while suspended and schedule the next wakeup.
+     */
+    @SuppressWarnings("MissingPermission")
+    protected void applySampling() {
+        final long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, "applySampling(): " + sampling.getState() + ", interval " + sampling.getIntervalMillis() / 1000 +
+                "s, fixes per hour: " + Math.round(sampling.getFixesPerHour(now)) +
+                ", GPS on: " + Math.round(sampling.getRadioOnRatio(now) * 100) + "% (" +
+                sampling.getRadioOnMillis(now) / 1000 + "s)");
+
+        requestLocationUpdates(true /* continuous */);
+        if (locationManager == null) {
+            // missing permissions
+            return;
+        }
+
+        if (!sampling.isSuspended()) {
+            locationManager.removeUpdates(coarseListener);
+        } else if (locationManager.getAllProviders().contains(LocationManager.NETWORK_PROVIDER)) {
+            locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, COARSE_INTERVAL_MILLIS, 0,
+                    coarseListener, workerThread.getLooper());
+        }
+
+        final AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        final long delay = sampling.getWakeupDelayMillis();
+        if (delay >= 0) {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, now + delay, getSamplingWakeupIntent());
+        } else {
+            alarmManager.cancel(getSamplingWakeupIntent());
+        }
+    }
+
+    /** Stop detecting movement and cancel wakeups of the sampling controller */
+    protected void stopSampling() {
+        if (locationManager != null) {
+            locationManager.removeUpdates(coarseListener);
+        }
+        final AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getSamplingWakeupIntent());
+    }
+
+    /** Returns the intent for waking up the sampling controller */
+    protected PendingIntent getSamplingWakeupIntent() {
+        final Intent intent = new Intent(this, GPSReceiver.class);
+        intent.setAction(ACTION_SAMPLING_WAKEUP);
+        return PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
     /** Start receiving continuous location updates */
@@ -438,9 +893,22 @@ public class GPSReceiver extends Service implements LocationListener {
         context.startService(intent);
     }
 
+    /**
+     * Upload all locations, e.g. for retrying a failed upload after the process has been restarted.
+     */
+    public static void startActionUploadLocations(final Context context) {
+        Log.v(TAG, "startActionUploadLocations()");
+        Intent intent = new Intent(context, GPSReceiver.class);
+        intent.setAction(ACTION_UPLOAD_LOCATIONS);
+        context.startService(intent);
+    }
+
     /**
      * Save current location backlog to internal storage.
-     * Set force to true for saving even if saveIntervalMins hasn't been reached yet
+     * Only locations added or removed since the last save are written to the journal. They are
+     * collected and saved together once cSaveIntervalSecs have passed since the first one or once
+     * there are SAVE_MAX_PENDING_RECORDS, which shares the cost of syncing the journal.
+     * Set force to true for saving immediately.
      */
     protected void saveProgressToStorage(boolean force) {
         Log.v(TAG, "saveProgressToStorage(): force " + force);
@@ -449,18 +917,24 @@ public class GPSReceiver extends Service implements LocationListener {
             return;
         }
 
-        long now = System.currentTimeMillis();
-        if (!force && (now - lastSaveMillis) / 1000 / 60 < saveIntervalMins) {
+        final int numPending = journal.getNumPending();
+        if (!force && cSaveIntervalSecs > 0 && numPending < SAVE_MAX_PENDING_RECORDS) {
+            if (numPending > 0 && !saveScheduled) {
+                workerHandler.postDelayed(saveRunnable, cSaveIntervalSecs * 1000);
+                saveScheduled = true;
+            }
             return;
         }
-        lastSaveMillis = now;
+        workerHandler.removeCallbacks(saveRunnable);
+        saveScheduled = false;
 
         try {
-            FileOutputStream outFile = openFileOutput(FILE_LOCATION_BACKLOG, Context.MODE_PRIVATE);
-            ObjectOutput out = new ObjectOutputStream(outFile);
-            out.writeObject(lastLocations);
-            out.close();
-            Log.i(TAG, "saveProgressToStorage(): saved " + lastLocations.size() + " locations to storage");
+            journal.commit();
+            if (journal.needsCompaction()) {
+                journal.compact(lastLocations);
+            }
+            BacklogSummary.write(getFileStreamPath(FILE_BACKLOG_SUMMARY), lastLocations);
+            Log.i(TAG, "saveProgressToStorage(): saved " + numPending + " records, " + lastLocations.size() + " locations in storage");
         } catch (java.io.IOException e) {
             e.printStackTrace();
         }
@@ -469,18 +943,43 @@ public class GPSReceiver extends Service implements LocationListener {
     /** Restore last location backlog from internal storage */
     protected void restoreProgressFromStorage() {
         Log.v(TAG, "restoreProgressFromStorage()");
+        journal = new LocationJournal(getFileStreamPath(FILE_LOCATION_JOURNAL));
+        segmentStore = new SegmentStore(new File(getFilesDir(), DIR_SEGMENTS));
+        if (!journal.exists()) {
+            migrateLegacyBacklog();
+            return;
+        }
+
         try {
-            FileInputStream inFile = openFileInput(FILE_LOCATION_BACKLOG);
-            ObjectInput in = new ObjectInputStream(inFile);
-            lastLocations = (MyLocationList)in.readObject();
-            in.close();
+            lastLocations = journal.replay(withMemoryBudget(new MyLocationList()));
             Log.i(TAG, "restoreProgressFromStorage(): read " + lastLocations.size() + " previous locations from storage");
+        } catch (java.io.IOException e) {
+            Log.e(TAG, "restoreProgressFromStorage(): could not read journal, starting with an empty backlog", e);
+            // clear, also on storage: otherwise the unreadable journal would hide all locations appended later on
+            lastLocations = withMemoryBudget(new MyLocationList());
+            try {
+                journal.compact(lastLocations);
+                BacklogSummary.write(getFileStreamPath(FILE_BACKLOG_SUMMARY), lastLocations);
+            } catch (java.io.IOException e2) {
+                Log.e(TAG, "restoreProgressFromStorage(): could not rewrite journal", e2);
+            }
+        }
+    }
+
+    /** Convert a location backlog written by previous versions into a journal */
+    protected void migrateLegacyBacklog() {
+        Log.v(TAG, "migrateLegacyBacklog()");
+        try {
+            lastLocations = withMemoryBudget(LegacyBacklogReader.read(openFileInput(FILE_LOCATION_BACKLOG)));
+            journal.compact(lastLocations);
+            deleteFile(FILE_LOCATION_BACKLOG);
+            Log.i(TAG, "migrateLegacyBacklog(): migrated " + lastLocations.size() + " previous locations");
         } catch (FileNotFoundException e) {
-            Log.v(TAG, "restoreProgressFromStorage(): no previous backlog on storage");
+            Log.v(TAG, "migrateLegacyBacklog(): no previous backlog on storage");
         } catch (java.io.IOException | ClassNotFoundException e) {
-            Log.v(TAG, "restoreProgressFromStorage(): unknown exception");
+            Log.v(TAG, "migrateLegacyBacklog(): unknown exception");
             // clear
-            lastLocations = new MyLocationList();
+            lastLocations = withMemoryBudget(new MyLocationList());
             e.printStackTrace();
         }
     }
@@ -502,15 +1001,27 @@ public class GPSReceiver extends Service implements LocationListener {
         }
         lastUploadMillis = now;
 
-        FTPService.startActionStoreLocationList(this, lastLocations);
+        // hand over a copy since we will continue modifying our list
+        UploadService.startActionStoreLocationList(this, new MyLocationList(lastLocations));
+    }
+
+    /** Limit the memory used by the given backlog to BACKLOG_MEMORY_BUDGET, returns the backlog */
+    protected MyLocationList withMemoryBudget(final MyLocationList locations) {
+        locations.setMemoryBudget(new File(getFilesDir(), DIR_BACKLOG_SPILL), BACKLOG_MEMORY_BUDGET);
+        return locations;
+    }
+
+    /** Return statistics about the backlog, taken from its summary while it is being restored */
+    protected MyLocationList.Statistics getStatistics() {
+        return restoringSummary != null ? restoringSummary.statistics : lastLocations.getStatistics();
     }
 
     /** Build status bar notification */
     @SuppressLint("DefaultLocale")
     protected Notification buildNotification() {
-        final MyLocationList.Statistics stats = lastLocations.getStatistics();
+        final MyLocationList.Statistics stats = getStatistics();
         final String title = String.format("# %d %s %s %.0f %s",
-                lastLocations.size(),
+                stats.numLocations,
                 getString(R.string.notification_distance_short),
                 Helper.humanReadableDistance(this, stats.distanceTotal, 0),
                 stats.speedLast, getString(R.string.speed_unit_kilometers_per_hour));
@@ -54,4 +54,24 @@ class Helper {
                     days, context.getString(R.string.time_unit_days), hours, minutes, seconds);
         }
     }
+
+    /**
+     * Encodes the given bytes as Base64 without line breaks.
+     * Unlike android.util.Base64 this also works in local unit tests.
+     */
+    static String base64(final byte[] bytes) {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        final StringBuilder result = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            final int remaining = bytes.length - i;
+            final int block = (bytes[i] & 0xff) << 16 |
+                    (remaining > 1 ? (bytes[i + 1] & 0xff) << 8 : 0) |
+                    (remaining > 2 ? bytes[i + 2] & 0xff : 0);
+            result.append(alphabet.charAt(block >> 18 & 0x3f));
+            result.append(alphabet.charAt(block >> 12 & 0x3f));
+            result.append(remaining > 1 ? alphabet.charAt(block >> 6 & 0x3f) : '=');
+            result.append(remaining > 2 ? alphabet.charAt(block & 0x3f) : '=');
+        }
+        return result.toString();
+    }
 }
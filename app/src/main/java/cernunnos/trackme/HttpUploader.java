@@ -0,0 +1,159 @@
+package cernunnos.trackme;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Uploads locations via HTTP(S).
+ *
+ * The whole file is uploaded with PUT. New locations are appended with POST, passing the entity tag
+ * (ETag) of the server file returned by the previous upload in an If-Match header. The server must
+ * append the request body to the file only if its entity tag still matches, otherwise it has to
+ * respond with 412 (Precondition Failed) and we rewrite the whole file. Both requests should
+ * return the new entity tag. If the server doesn't return one the whole file is rewritten each time.
+ *
+ * Request bodies are streamed using chunked transfer encoding, the file is never built in memory.
+ * They can be gzip compressed (Content-Encoding: gzip), the server must decompress them before
+ * storing. Connections are kept alive and reused for further uploads by HttpURLConnection as long
+ * as responses are read completely.
+ */
+class HttpUploader implements Uploader {
+    // tag for logging
+    private static final String TAG = HttpUploader.class.getSimpleName();
+
+    // timeouts in milliseconds
+    private static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    // settings
+    private final URL url;
+    private final String userName;
+    private final String password;
+    private final LocationEncoder.Format format;
+    private final boolean compressed;
+
+    /** Creates a new uploader, uses basic authentication unless the user name is empty */
+    HttpUploader(final URL url, final String userName, final String password,
+                 final LocationEncoder.Format format, final boolean compressed) {
+        this.url = url;
+        this.userName = userName;
+        this.password = password;
+        this.format = format;
+        this.compressed = compressed;
+    }
+
+    @Override
+    public String getTarget() {
+        // compression only affects the transfer, not the server file
+        return url + " (" + format + ")";
+    }
+
+    @Override
+    public void upload(final MyLocationList locations, final UploadState state) throws IOException {
+        final int firstIndex = state.alreadyUploaded(locations);
+        if (firstIndex == locations.size()) {
+            Log.v(TAG, "upload(): all " + firstIndex + " locations already uploaded");
+            return;
+        }
+        if (firstIndex > 0 && state.etag != null) {
+            if (send(locations, firstIndex, state)) {
+                return;
+            }
+            Log.i(TAG, "upload(): server file has been modified, rewriting it");
+        }
+        send(locations, 0, state);
+    }
+
+    @Override
+    public void close() {
+        // nothing to do, idle connections are closed by HttpURLConnection's connection pool
+    }
+
+    /**
+     * Sends the locations starting at firstIndex. Appends them if firstIndex is greater than 0,
+     * otherwise rewrites the whole file. Returns false if appending failed because the server file
+     * didn't match the upload state anymore.
+     */
+    private boolean send(final MyLocationList locations, final int firstIndex, final UploadState state) throws IOException {
+        final boolean append = firstIndex > 0;
+        final long prevBytes = append ? state.bytes : 0;
+
+        final HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        boolean success = false;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestMethod(append ? "POST" : "PUT");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
+            connection.setRequestProperty("Content-Type",
+                    format == LocationEncoder.Format.BINARY ? "application/octet-stream" : "text/plain");
+            if (compressed) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            if (append) {
+                connection.setRequestProperty("If-Match", state.etag);
+            }
+            if (!userName.isEmpty()) {
+                // sent preemptively, streamed requests can't be repeated after an authentication challenge
+                final byte[] credentials = (userName + ":" + password).getBytes("UTF-8");
+                connection.setRequestProperty("Authorization", "Basic " + Helper.base64(credentials));
+            }
+
+            // forget about the server file content until the upload has been completed
+            state.invalidate();
+
+            final CountingOutputStream transferred = new CountingOutputStream(connection.getOutputStream());
+            final OutputStream out = compressed ? LocationEncoder.compress(transferred) : transferred;
+            final long bytes = new LocationEncoder(format).write(locations, firstIndex, out);
+            out.close();
+
+            final int code = connection.getResponseCode();
+            readResponse(connection);
+            success = true;
+            if (append && code == HttpURLConnection.HTTP_PRECON_FAILED) {
+                return false;
+            }
+            if (code / 100 != 2) {
+                throw new IOException("server responded with " + code + " " + connection.getResponseMessage());
+            }
+            state.update(locations, prevBytes + bytes, connection.getHeaderField("ETag"));
+            Log.v(TAG, "send(): file upload with " + (locations.size() - firstIndex) + " locations (" +
+                    bytes + " bytes, " + (compressed ? transferred.getCount() + " bytes compressed, " : "") +
+                    (append ? "appended" : "rewritten") + ") succeeded");
+            return true;
+        } finally {
+            if (!success) {
+                // don't reuse a connection in an unknown state
+                connection.disconnect();
+            }
+        }
+    }
+
+    /** Reads and discards the response body, required for reusing the connection */
+    private static void readResponse(final HttpURLConnection connection) throws IOException {
+        InputStream in;
+        try {
+            in = connection.getInputStream();
+        } catch (IOException e) {
+            // thrown for error responses
+            in = connection.getErrorStream();
+        }
+        if (in == null) {
+            return;
+        }
+        try {
+            final byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
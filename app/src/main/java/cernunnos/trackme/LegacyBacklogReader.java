@@ -0,0 +1,55 @@
+package cernunnos.trackme;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+
+/**
+ * Reads location backlogs which have been written by previous versions using Java serialization.
+ *
+ * Previous versions didn't specify a serialVersionUID, so any change to MyLocationList or MyLocation
+ * breaks deserialization. Instead we replace the class descriptors found in the stream with
+ * descriptors of local classes having the same serialized fields.
+ */
+class LegacyBacklogReader {
+    /**
+     * Serialized form of MyLocationList as written by previous versions. Its descriptor replaces the
+     * one found in the stream, so a serialVersionUID would never be compared.
+     */
+    @SuppressWarnings("serial")
+    private static class LegacyLocationList implements Serializable {
+        private ArrayDeque<MyLocation> locations;
+    }
+
+    /** Reads a legacy location backlog from the given stream and closes it */
+    static MyLocationList read(final InputStream inStream) throws IOException, ClassNotFoundException {
+        final ObjectInputStream in = new ObjectInputStream(inStream) {
+            @Override
+            protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+                final ObjectStreamClass desc = super.readClassDescriptor();
+                if (desc.getName().equals(MyLocationList.class.getName())) {
+                    return ObjectStreamClass.lookup(LegacyLocationList.class);
+                } else if (desc.getName().equals(MyLocation.class.getName())) {
+                    return ObjectStreamClass.lookup(MyLocation.class);
+                }
+                return desc;
+            }
+        };
+
+        final LegacyLocationList legacyLocations;
+        try {
+            legacyLocations = (LegacyLocationList)in.readObject();
+        } finally {
+            in.close();
+        }
+
+        final MyLocationList locations = new MyLocationList(legacyLocations.locations.size());
+        for (final MyLocation location : legacyLocations.locations) {
+            locations.addLast(location);
+        }
+        return locations;
+    }
+}
@@ -0,0 +1,234 @@
+package cernunnos.trackme;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes locations for uploading them to the server.
+ *
+ * Supported formats:
+ * - TEXT: one line "latitude longitude" per location with five decimal places (~18 bytes per location)
+ * - BINARY: zigzag varint encoded deltas of latitude, longitude (both in 1e-5 degrees) and time
+ *   (in seconds), preceded by a file header. 3 to 7 bytes per location, depending on the distance
+ *   between consecutive locations.
+ * - POLYLINE: Google's encoded polyline format with a precision of 1e-5 degrees, one polyline per
+ *   line. 2 to 6 bytes per location, doesn't contain the time.
+ *
+ * Uploads can be appended to the server file. Delta encoded formats therefore start each upload with
+ * a new block (BINARY) or line (POLYLINE) whose first location is relative to zero, i.e. absolute.
+ *
+ * Encoded bytes are collected in a reusable buffer, nothing gets allocated per location (except for
+ * rounding TEXT coordinates very close to a half-way point, see scaleHalfUp()).
+ * Uploads can additionally be gzip compressed, see compress().
+ */
+class LocationEncoder {
+    /** Upload formats, see class documentation */
+    enum Format {
+        TEXT, BINARY, POLYLINE;
+
+        /** Returns the format for the given preference value, TEXT if unknown */
+        static Format fromPreference(final String value) {
+            try {
+                return valueOf(value.toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                return TEXT;
+            }
+        }
+    }
+
+    // header of BINARY files: "TMB" followed by the format version
+    private static final byte[] BINARY_HEADER = {'T', 'M', 'B', 1};
+
+    // scaling of coordinates: five decimal places represent an accuracy of one meter (roughly), should be enough
+    private static final double SCALE = 1e5;
+    private static final int DECIMALS = 5;
+    private static final long DECIMALS_SCALE = 100000;
+    // distance from a half-way point below which TEXT rounding falls back to the decimal representation
+    private static final double HALF_WAY_EPSILON = 1e-6;
+
+    // output buffer
+    private static final int BUFFER_SIZE = 8192;
+    // maximum number of bytes encoded per location, see ensureCapacity()
+    private static final int MAX_LOCATION_BYTES = 64;
+
+    // deflate level for compressed uploads. higher levels don't result in smaller files for our
+    // formats but take considerably longer.
+    private static final int COMPRESSION_LEVEL = 6;
+
+    private final Format format;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+
+    // number of bytes written to the output stream
+    private long bytesWritten = 0;
+
+    // reusable location object
+    private final MyLocation location = new MyLocation();
+
+    /** Creates a new encoder for the given format */
+    LocationEncoder(final Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Writes the locations starting at firstIndex. The file header gets written as well if firstIndex
+     * is 0, i.e. if the whole server file gets rewritten. Returns the number of written bytes.
+     */
+    long write(final MyLocationList locations, final int firstIndex, final OutputStream out) throws IOException {
+        position = 0;
+        bytesWritten = 0;
+        if (format == Format.BINARY && firstIndex == 0) {
+            System.arraycopy(BINARY_HEADER, 0, buffer, 0, BINARY_HEADER.length);
+            position = BINARY_HEADER.length;
+        }
+        if (firstIndex >= locations.size()) {
+            flush(out);
+            return bytesWritten;
+        }
+        if (format == Format.BINARY) {
+            putVarint(locations.size() - firstIndex);
+        }
+
+        // previous location of this block, scaled
+        long prevLatitude = 0;
+        long prevLongitude = 0;
+        long prevTime = 0;
+        for (int i = firstIndex; i < locations.size(); ++i) {
+            locations.get(i, location);
+            ensureCapacity(out, MAX_LOCATION_BYTES);
+            final long latitude = Math.round(location.latitude * SCALE);
+            final long longitude = Math.round(location.longitude * SCALE);
+            switch (format) {
+                case TEXT:
+                    putFixedPoint(location.latitude);
+                    buffer[position++] = ' ';
+                    putFixedPoint(location.longitude);
+                    buffer[position++] = '\n';
+                    break;
+                case BINARY: {
+                    final long time = location.time / 1000;
+                    putVarint(zigzag(latitude - prevLatitude));
+                    putVarint(zigzag(longitude - prevLongitude));
+                    putVarint(zigzag(time - prevTime));
+                    prevTime = time;
+                    break;
+                }
+                case POLYLINE:
+                    putPolylineValue(latitude - prevLatitude);
+                    putPolylineValue(longitude - prevLongitude);
+                    break;
+            }
+            prevLatitude = latitude;
+            prevLongitude = longitude;
+        }
+        if (format == Format.POLYLINE) {
+            buffer[position++] = '\n';
+        }
+        flush(out);
+        return bytesWritten;
+    }
+
+    /**
+     * Returns a stream which gzip compresses all data before writing it to the given stream.
+     * Closing it finishes the compressed data and closes the given stream.
+     */
+    static OutputStream compress(final OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(COMPRESSION_LEVEL);
+            }
+        };
+    }
+
+    /** Writes the buffer to the output stream if it can't take the given number of bytes */
+    private void ensureCapacity(final OutputStream out, final int bytes) throws IOException {
+        if (position + bytes > buffer.length) {
+            flush(out);
+        }
+    }
+
+    /** Writes the buffer to the output stream */
+    private void flush(final OutputStream out) throws IOException {
+        out.write(buffer, 0, position);
+        bytesWritten += position;
+        position = 0;
+    }
+
+    /**
+     * Puts the given coordinate with DECIMALS decimal places, e.g. "-12.34567". The output matches
+     * String.format("%.5f"): the magnitude is rounded half up and the sign is kept, even if the
+     * rounded value is zero ("-0.00000").
+     */
+    private void putFixedPoint(final double coordinate) {
+        if (coordinate < 0 || (coordinate == 0 && 1 / coordinate < 0)) {
+            buffer[position++] = '-';
+        }
+        final long value = scaleHalfUp(Math.abs(coordinate));
+        putDecimal(value / DECIMALS_SCALE);
+        buffer[position++] = '.';
+        long fraction = value % DECIMALS_SCALE;
+        for (int i = DECIMALS - 1; i >= 0; --i) {
+            buffer[position + i] = (byte)('0' + fraction % 10);
+            fraction /= 10;
+        }
+        position += DECIMALS;
+    }
+
+    /**
+     * Returns the given non-negative coordinate scaled to DECIMALS decimal places, rounded half up.
+     * String.format() rounds the shortest decimal representation of the coordinate, which can differ
+     * from the scaled binary value close to half-way points. Only these rare cases use it.
+     */
+    private static long scaleHalfUp(final double coordinate) {
+        final double scaled = coordinate * SCALE;
+        final double floor = Math.floor(scaled);
+        final double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5) > HALF_WAY_EPSILON) {
+            return (long)floor + (fraction > 0.5 ? 1 : 0);
+        }
+        return new BigDecimal(Double.toString(coordinate)).setScale(DECIMALS, RoundingMode.HALF_UP).unscaledValue().longValue();
+    }
+
+    /** Puts the given non-negative number in decimal notation */
+    private void putDecimal(final long value) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            ++digits;
+        }
+        long v = value;
+        for (int i = digits - 1; i >= 0; --i) {
+            buffer[position + i] = (byte)('0' + v % 10);
+            v /= 10;
+        }
+        position += digits;
+    }
+
+    /** Maps signed to unsigned values so that small absolute values result in small numbers */
+    private static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /** Puts the given unsigned value as varint: 7 bits per byte, least significant first, MSB set if more follow */
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[position++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte)value;
+    }
+
+    /** Puts the given signed value in encoded polyline format: 5 bits per character, offset by 63 */
+    private void putPolylineValue(final long value) {
+        long v = value < 0 ? ~(value << 1) : value << 1;
+        while (v >= 0x20) {
+            buffer[position++] = (byte)((0x20 | (v & 0x1f)) + 63);
+            v >>= 5;
+        }
+        buffer[position++] = (byte)(v + 63);
+    }
+}
@@ -0,0 +1,170 @@
+package cernunnos.trackme;
+
+/**
+ * Smooths locations with a constant velocity Kalman filter and rejects outliers.
+ *
+ * North and east are filtered independently, each with position and velocity as state. The
+ * measurement noise is the reported accuracy, the process noise is a random acceleration. The state
+ * is kept in degrees and innovations are converted to meters at the current latitude, so there is
+ * no reference point the track could drift away from.
+ *
+ * A location is rejected if its Mahalanobis distance to the predicted position exceeds a gate
+ * (chi-square, 2 degrees of freedom, 99.9%). Several consecutive rejections or a long gap between
+ * locations (e.g. while GPS has been suspended) restart the filter at the next location, so a real
+ * jump can't lock it out.
+ *
+ * Nothing gets allocated per location.
+ */
+class LocationFilter {
+    // standard deviation of the random acceleration in m/s^2
+    private static final double ACCELERATION_NOISE = 1.0;
+    // accuracy assumed for locations without one, in meters
+    private static final double DEFAULT_ACCURACY = 50.0;
+    // squared Mahalanobis distance for rejecting a location
+    private static final double GATE = 13.8;
+    // number of consecutive rejected locations after which the filter restarts
+    private static final int MAX_REJECTED = 3;
+    // variance of the unknown velocity when starting, in (m/s)^2
+    private static final double INITIAL_SPEED_VARIANCE = 50.0 * 50.0;
+    // additional variance of the velocity after rejecting a location, in (m/s)^2
+    private static final double MANEUVER_SPEED_VARIANCE = 5.0 * 5.0;
+    // maximum time between locations, the filter restarts after longer gaps
+    private static final long MAX_GAP_MILLIS = 5 * 60 * 1000;
+
+    // mean earth radius in meters
+    private static final double EARTH_RADIUS = 6371008.8;
+    // meters per degree of latitude
+    private static final double METERS_PER_DEGREE = Math.toRadians(EARTH_RADIUS);
+
+    // state
+    private boolean initialized = false;
+    private long time;
+    private double latitude;
+    private double longitude;
+    // velocity in m/s
+    private double velocityNorth;
+    private double velocityEast;
+    // covariance per axis: position variance, covariance, velocity variance
+    private double pNorth00, pNorth01, pNorth11;
+    private double pEast00, pEast01, pEast11;
+
+    // number of consecutive rejected locations
+    private int numRejected = 0;
+
+    // statistics
+    // number of received locations
+    private long numReceived = 0;
+    // number of rejected locations
+    private long numRejectedTotal = 0;
+
+    /**
+     * Filters the given location, replacing its coordinates and accuracy by the estimated ones.
+     * Returns false if it is an outlier which should be dropped, the location is unchanged then.
+     */
+    boolean filter(final MyLocation location) {
+        ++numReceived;
+        final double accuracy = location.hasAccuracy && location.accuracy > 0 ? location.accuracy : DEFAULT_ACCURACY;
+        final double r = accuracy * accuracy;
+        final long dt = location.time - time;
+        if (!initialized || dt > MAX_GAP_MILLIS || numRejected >= MAX_REJECTED) {
+            initialize(location, r);
+            return true;
+        }
+
+        // predict
+        if (dt > 0) {
+            final double t = dt / 1000.0;
+            final double q = ACCELERATION_NOISE * ACCELERATION_NOISE;
+            final double cosLatitude = Math.cos(Math.toRadians(latitude));
+            latitude += velocityNorth * t / METERS_PER_DEGREE;
+            longitude += velocityEast * t / (METERS_PER_DEGREE * cosLatitude);
+            pNorth00 += t * (2 * pNorth01 + t * pNorth11) + q * t * t * t * t / 4;
+            pNorth01 += t * pNorth11 + q * t * t * t / 2;
+            pNorth11 += q * t * t;
+            pEast00 += t * (2 * pEast01 + t * pEast11) + q * t * t * t * t / 4;
+            pEast01 += t * pEast11 + q * t * t * t / 2;
+            pEast11 += q * t * t;
+            time = location.time;
+        }
+
+        // innovation in meters
+        final double metersPerDegreeEast = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        final double yNorth = (location.latitude - latitude) * METERS_PER_DEGREE;
+        double dLongitude = location.longitude - longitude;
+        if (dLongitude > 180) {
+            dLongitude -= 360;
+        } else if (dLongitude < -180) {
+            dLongitude += 360;
+        }
+        final double yEast = dLongitude * metersPerDegreeEast;
+        final double sNorth = pNorth00 + r;
+        final double sEast = pEast00 + r;
+
+        // gating
+        if (yNorth * yNorth / sNorth + yEast * yEast / sEast > GATE) {
+            ++numRejected;
+            ++numRejectedTotal;
+            // we may be maneuvering: trust the next location more
+            pNorth00 += r;
+            pNorth11 += MANEUVER_SPEED_VARIANCE;
+            pEast00 += r;
+            pEast11 += MANEUVER_SPEED_VARIANCE;
+            return false;
+        }
+        numRejected = 0;
+
+        // update
+        final double kNorth0 = pNorth00 / sNorth;
+        final double kNorth1 = pNorth01 / sNorth;
+        latitude += kNorth0 * yNorth / METERS_PER_DEGREE;
+        velocityNorth += kNorth1 * yNorth;
+        pNorth11 -= kNorth1 * pNorth01;
+        pNorth01 *= 1 - kNorth0;
+        pNorth00 *= 1 - kNorth0;
+
+        final double kEast0 = pEast00 / sEast;
+        final double kEast1 = pEast01 / sEast;
+        longitude += kEast0 * yEast / metersPerDegreeEast;
+        velocityEast += kEast1 * yEast;
+        pEast11 -= kEast1 * pEast01;
+        pEast01 *= 1 - kEast0;
+        pEast00 *= 1 - kEast0;
+        if (longitude > 180) {
+            longitude -= 360;
+        } else if (longitude < -180) {
+            longitude += 360;
+        }
+
+        location.latitude = latitude;
+        location.longitude = longitude;
+        location.hasAccuracy = true;
+        location.accuracy = (float)Math.sqrt((pNorth00 + pEast00) / 2);
+        return true;
+    }
+
+    /** Restarts the filter, e.g. after all locations have been deleted */
+    void reset() {
+        initialized = false;
+        numRejected = 0;
+    }
+
+    /** Returns the ratio of rejected locations */
+    double getRejectedRatio() {
+        return numReceived > 0 ? (double)numRejectedTotal / numReceived : 0;
+    }
+
+    /** Starts filtering at the given location with the given measurement variance */
+    private void initialize(final MyLocation location, final double r) {
+        initialized = true;
+        numRejected = 0;
+        time = location.time;
+        latitude = location.latitude;
+        longitude = location.longitude;
+        // the velocity is unknown, its standard deviation is a fast car's speed
+        velocityNorth = 0;
+        velocityEast = 0;
+        pNorth00 = pEast00 = r;
+        pNorth01 = pEast01 = 0;
+        pNorth11 = pEast11 = INITIAL_SPEED_VARIANCE;
+    }
+}
@@ -0,0 +1,399 @@
+package cernunnos.trackme;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of location list modifications.
+ *
+ * Instead of rewriting the whole location backlog on each save we only append small fixed-size
+ * records: one per added, replaced (=newest) or removed (=oldest) location. Clearing the list simply
+ * truncates the journal. Restoring replays all records. Once the journal contains too many records
+ * compared to the number of locations it describes it gets compacted, i.e. rewritten from scratch.
+ *
+ * Records are buffered in memory until commit() is called, which appends them as groups and syncs
+ * the file, so the cost of syncing is shared by all records of a commit. Each group starts with a
+ * record containing the number of its records and their CRC32. If we get killed while committing,
+ * the incomplete group at the end is detected and dropped as a whole when replaying, together with
+ * anything following it. Compaction writes a new file which replaces the old one once complete.
+ */
+class LocationJournal {
+    // tag for logging
+    private static final String TAG = LocationJournal.class.getSimpleName();
+
+    // file header: magic and format version
+    private static final int MAGIC = 0x544d4a4c; // "TMJL"
+    private static final int VERSION = 2;
+    // version without groups, still readable
+    private static final int VERSION_UNGROUPED = 1;
+    private static final int HEADER_SIZE = 4 + 4;
+
+    // record types
+    // add a location (at the end)
+    private static final byte RECORD_ADD = 'A';
+    // remove the first (=oldest) location
+    private static final byte RECORD_REMOVE_FIRST = 'R';
+    // replace the last (=newest) location
+    private static final byte RECORD_REPLACE_LAST = 'L';
+    // start of a group: number of following records and their CRC32
+    private static final byte RECORD_GROUP = 'G';
+
+    // record layout: type, latitude, longitude, time, speed, accuracy, flags
+    // (group records: type, number of records, CRC32, padding)
+    static final int RECORD_SIZE = 1 + 8 + 8 + 8 + 4 + 4 + 1;
+
+    // record flags
+    private static final byte FLAG_HAS_SPEED = 0x01;
+    private static final byte FLAG_HAS_ACCURACY = 0x02;
+
+    // payload of records without a location
+    private static final byte[] EMPTY_PAYLOAD = new byte[RECORD_SIZE - 1];
+
+    // number of records read at once when replaying
+    private static final int REPLAY_BUFFER_RECORDS = 1024;
+    // maximum number of records per group, a group including its group record has to fit into the replay buffer
+    private static final int MAX_GROUP_RECORDS = REPLAY_BUFFER_RECORDS - 1;
+
+    // don't compact below this number of records
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    // compact if there are more than this many records per location
+    private static final int COMPACT_RATIO = 4;
+
+    // journal file
+    private final File file;
+
+    // records not yet written to the file
+    private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+
+    // number of location records in the journal (including pending ones)
+    private int numRecords = 0;
+
+    // number of locations described by the journal (including pending records)
+    private int numLocations = 0;
+
+    /** Creates a journal stored in the given file */
+    LocationJournal(final File file) {
+        this.file = file;
+    }
+
+    /** Returns true if the journal file exists */
+    boolean exists() {
+        return file.exists();
+    }
+
+    /** Appends a record for a newly added location */
+    void append(final MyLocation location) {
+        putLocation(RECORD_ADD, location);
+        ++numLocations;
+    }
+
+    /** Appends a record for replacing the last (=newest) location */
+    void replaceLast(final MyLocation location) {
+        putLocation(RECORD_REPLACE_LAST, location);
+    }
+
+    /** Appends a record of the given type containing the given location */
+    private void putLocation(final byte type, final MyLocation location) {
+        ensureCapacity();
+        pending.put(type);
+        pending.putDouble(location.latitude);
+        pending.putDouble(location.longitude);
+        pending.putLong(location.time);
+        pending.putFloat(location.speed);
+        pending.putFloat(location.accuracy);
+        pending.put((byte)((location.hasSpeed ? FLAG_HAS_SPEED : 0) | (location.hasAccuracy ? FLAG_HAS_ACCURACY : 0)));
+        ++numRecords;
+    }
+
+    /** Appends a record for the removal of the first (=oldest) location */
+    void removeFirst() {
+        ensureCapacity();
+        pending.put(RECORD_REMOVE_FIRST);
+        pending.put(EMPTY_PAYLOAD);
+        ++numRecords;
+        --numLocations;
+    }
+
+    /** Removes all locations by truncating the journal */
+    void clear() throws IOException {
+        pending.clear();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            writeHeader(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        numRecords = 0;
+        numLocations = 0;
+    }
+
+    /** Returns the number of records which haven't been committed yet */
+    int getNumPending() {
+        return pending.position() / RECORD_SIZE;
+    }
+
+    /**
+     * Writes all pending records to the file and syncs it. If that fails, the file is truncated to
+     * its previous length and the records are kept for the next commit.
+     */
+    void commit() throws IOException {
+        if (pending.position() == 0) {
+            return;
+        }
+        final FileOutputStream out = openForAppending();
+        long length = -1;
+        try {
+            length = out.getChannel().size();
+            if (length == 0) {
+                writeHeader(out);
+            }
+            writeGroups(out);
+            out.getFD().sync();
+            pending.clear();
+        } catch (IOException e) {
+            // an incomplete group would hide all groups committed later on, keep the records for retrying
+            if (length >= 0) {
+                try {
+                    out.getChannel().truncate(length);
+                } catch (IOException truncateException) {
+                    // replaying drops the incomplete group
+                    Log.w(TAG, "commit(): could not truncate: " + truncateException);
+                }
+            }
+            throw e;
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Opens the file for appending records, tests override it for injecting failures */
+    FileOutputStream openForAppending() throws IOException {
+        return new FileOutputStream(file, true /* append */);
+    }
+
+    /** Returns true if the journal contains a lot of records which don't describe current locations */
+    boolean needsCompaction() {
+        return numRecords > COMPACT_MIN_RECORDS && numRecords > COMPACT_RATIO * numLocations;
+    }
+
+    /**
+     * Rewrites the journal so that it only contains the given locations.
+     * The new journal is written to a temporary file first which then replaces the old one.
+     */
+    void compact(final MyLocationList locations) throws IOException {
+        Log.v(TAG, "compact(): " + numRecords + " records, " + locations.size() + " locations");
+        pending.clear();
+        numRecords = 0;
+        numLocations = 0;
+
+        // write a group at a time, so the locations don't need to fit into memory at once
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            writeHeader(out);
+            final MyLocation location = new MyLocation();
+            for (int i = 0; i < locations.size(); ++i) {
+                append(locations.get(i, location));
+                if (getNumPending() == MAX_GROUP_RECORDS) {
+                    writeGroups(out);
+                    pending.clear();
+                }
+            }
+            writeGroups(out);
+            pending.clear();
+            out.getFD().sync();
+        } catch (IOException e) {
+            pending.clear();
+            throw e;
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("could not rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /** Reads all records from the journal and returns the resulting location list, see replay(MyLocationList) */
+    MyLocationList replay() throws IOException {
+        return replay(new MyLocationList());
+    }
+
+    /**
+     * Reads all records from the journal into the given empty location list and returns it.
+     * Incomplete or invalid trailing records (e.g. if we got killed during writing) are ignored
+     * and the journal gets compacted in this case.
+     *
+     * The file is read in large blocks which are parsed in place, nothing gets allocated per record.
+     */
+    MyLocationList replay(final MyLocationList locations) throws IOException {
+        pending.clear();
+        numRecords = 0;
+        numLocations = 0;
+
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return locations;
+        }
+
+        final FileChannel channel = in.getChannel();
+        final ByteBuffer buffer = ByteBuffer.allocate(REPLAY_BUFFER_RECORDS * RECORD_SIZE);
+        final MyLocation location = new MyLocation();
+        final CRC32 crc = new CRC32();
+        boolean corrupted = false;
+        boolean grouped = true;
+        try {
+            boolean headerRead = false;
+            boolean eof = false;
+            // number of records left inside the current group
+            int groupRemaining = 0;
+            while (!eof && !corrupted) {
+                eof = channel.read(buffer) < 0;
+                buffer.flip();
+                if (!headerRead && buffer.remaining() >= HEADER_SIZE) {
+                    final int magic = buffer.getInt();
+                    final int version = buffer.getInt();
+                    if (magic != MAGIC || (version != VERSION && version != VERSION_UNGROUPED)) {
+                        throw new IOException("invalid journal header");
+                    }
+                    grouped = version != VERSION_UNGROUPED;
+                    headerRead = true;
+                }
+                while (headerRead && !corrupted && buffer.remaining() >= RECORD_SIZE) {
+                    if (grouped && groupRemaining == 0) {
+                        // only start a group once it is complete and valid
+                        final int numGroupRecords = checkGroup(buffer, crc);
+                        if (numGroupRecords == 0) {
+                            // wait for the rest of the group
+                            break;
+                        } else if (numGroupRecords < 0) {
+                            corrupted = true;
+                        } else {
+                            groupRemaining = numGroupRecords;
+                            buffer.position(buffer.position() + RECORD_SIZE);
+                        }
+                    } else if (replayRecord(buffer, location, locations)) {
+                        ++numRecords;
+                        --groupRemaining;
+                    } else {
+                        corrupted = true;
+                    }
+                }
+                if (eof && !corrupted && (!headerRead || buffer.hasRemaining())) {
+                    Log.w(TAG, "replay(): incomplete record at index " + numRecords);
+                    corrupted = true;
+                }
+                buffer.compact();
+            }
+        } finally {
+            in.close();
+        }
+
+        // rewrite older versions, appending groups to them would fail
+        if (corrupted || !grouped || needsCompaction()) {
+            compact(locations);
+        }
+        return locations;
+    }
+
+    /**
+     * Checks the group starting at the buffer's position without changing it. Returns the number of
+     * its records, 0 if the buffer doesn't contain all of them yet, or -1 if the group is invalid.
+     */
+    private int checkGroup(final ByteBuffer buffer, final CRC32 crc) {
+        final int start = buffer.position();
+        final int numGroupRecords = buffer.getInt(start + 1);
+        if (buffer.get(start) != RECORD_GROUP || numGroupRecords <= 0 || numGroupRecords > MAX_GROUP_RECORDS) {
+            Log.w(TAG, "replay(): invalid group record at index " + numRecords);
+            return -1;
+        }
+        if (buffer.remaining() < (numGroupRecords + 1) * RECORD_SIZE) {
+            return 0;
+        }
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + start + RECORD_SIZE, numGroupRecords * RECORD_SIZE);
+        if ((int)crc.getValue() != buffer.getInt(start + 5)) {
+            Log.w(TAG, "replay(): invalid checksum of group at index " + numRecords);
+            return -1;
+        }
+        return numGroupRecords;
+    }
+
+    /** Writes all pending records to the given stream as groups, they are kept pending */
+    private void writeGroups(final FileOutputStream out) throws IOException {
+        final byte[] records = pending.array();
+        final int numPending = getNumPending();
+        final ByteBuffer group = ByteBuffer.allocate(RECORD_SIZE);
+        final CRC32 crc = new CRC32();
+        for (int first = 0; first < numPending; first += MAX_GROUP_RECORDS) {
+            final int count = Math.min(numPending - first, MAX_GROUP_RECORDS);
+            crc.reset();
+            crc.update(records, first * RECORD_SIZE, count * RECORD_SIZE);
+            group.clear();
+            group.put(RECORD_GROUP);
+            group.putInt(count);
+            group.putInt((int)crc.getValue());
+            out.write(group.array());
+            out.write(records, first * RECORD_SIZE, count * RECORD_SIZE);
+        }
+    }
+
+    /**
+     * Applies the record at the buffer's position to the given list, using the given location object
+     * for reading it. Returns false if the record is invalid.
+     */
+    private boolean replayRecord(final ByteBuffer buffer, final MyLocation location, final MyLocationList locations) {
+        final byte type = buffer.get();
+        location.latitude = buffer.getDouble();
+        location.longitude = buffer.getDouble();
+        location.time = buffer.getLong();
+        location.speed = buffer.getFloat();
+        location.accuracy = buffer.getFloat();
+        final byte flags = buffer.get();
+        location.hasSpeed = (flags & FLAG_HAS_SPEED) != 0;
+        location.hasAccuracy = (flags & FLAG_HAS_ACCURACY) != 0;
+
+        if (type == RECORD_ADD) {
+            locations.addLast(location);
+            ++numLocations;
+        } else if (type == RECORD_REPLACE_LAST && locations.size() > 0) {
+            locations.replaceLast(location);
+        } else if (type == RECORD_REMOVE_FIRST && locations.size() > 0) {
+            locations.removeFirst();
+            --numLocations;
+        } else {
+            Log.w(TAG, "replay(): invalid record of type " + type + " at index " + numRecords);
+            return false;
+        }
+        return true;
+    }
+
+    /** Grows the buffer for pending records if necessary */
+    private void ensureCapacity() {
+        if (pending.remaining() >= RECORD_SIZE) {
+            return;
+        }
+        final ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+        pending.flip();
+        grown.put(pending);
+        pending = grown;
+    }
+
+    /** Writes the journal header to the given stream */
+    private static void writeHeader(final FileOutputStream out) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        out.write(header.array());
+    }
+}
@@ -0,0 +1,556 @@
+package cernunnos.trackme;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stores locations column-wise in primitive arrays which are split into chunks of CHUNK_SIZE
+ * locations.
+ *
+ * Compared to a collection of MyLocation objects this avoids an object header, padding and a
+ * reference per location, so the memory consumption is close to the actual payload
+ * (33 bytes per location). Locations can be read by filling a reusable MyLocation object,
+ * thus nothing gets allocated per location.
+ *
+ * Full chunks are never modified, new locations are added to the last chunk. Therefore a copy
+ * shares all chunks with the original and takes constant time. The last chunk gets copied once
+ * either of them modifies it (copy on write), so a copy can be read by another thread while the
+ * original keeps being modified, provided it has been handed over safely (e.g. synchronized).
+ *
+ * Optionally a memory budget can be set: the oldest full chunks exceeding it are spilled to files
+ * and read again when accessed, without keeping them in memory. Sequential access reads each
+ * spilled chunk once, so iterating over all locations works across both tiers transparently.
+ * Files are deleted once no copy uses their chunk anymore.
+ */
+class LocationStore {
+    // tag for logging
+    private static final String TAG = LocationStore.class.getSimpleName();
+
+    // number of locations per chunk, a power of two
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // initial capacity if none has been specified
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // size of a location in the column-wise byte representation, see toByteArray()
+    static final int BYTES_PER_LOCATION = 8 + 8 + 8 + 4 + 4 + 1;
+
+    // flags
+    private static final byte FLAG_HAS_SPEED = 0x01;
+    private static final byte FLAG_HAS_ACCURACY = 0x02;
+
+    /** Columns of up to CHUNK_SIZE locations */
+    private static final class Columns {
+        final double[] latitudes;
+        final double[] longitudes;
+        final long[] times;
+        final float[] speeds;
+        final float[] accuracies;
+        final byte[] flags;
+
+        /** Creates new empty columns with the given capacity */
+        Columns(final int capacity) {
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            times = new long[capacity];
+            speeds = new float[capacity];
+            accuracies = new float[capacity];
+            flags = new byte[capacity];
+        }
+
+        /** Creates columns with the given capacity containing the first count locations of the given ones */
+        Columns(final Columns other, final int count, final int capacity) {
+            this(capacity);
+            System.arraycopy(other.latitudes, 0, latitudes, 0, count);
+            System.arraycopy(other.longitudes, 0, longitudes, 0, count);
+            System.arraycopy(other.times, 0, times, 0, count);
+            System.arraycopy(other.speeds, 0, speeds, 0, count);
+            System.arraycopy(other.accuracies, 0, accuracies, 0, count);
+            System.arraycopy(other.flags, 0, flags, 0, count);
+        }
+
+        int capacity() {
+            return latitudes.length;
+        }
+
+        /** Writes CHUNK_SIZE locations to the given file, in the layout of toByteArray() */
+        void write(final File file) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE * BYTES_PER_LOCATION).order(ByteOrder.nativeOrder());
+            buffer.asDoubleBuffer().put(latitudes, 0, CHUNK_SIZE);
+            buffer.position(CHUNK_SIZE * 8);
+            buffer.asDoubleBuffer().put(longitudes, 0, CHUNK_SIZE);
+            buffer.position(CHUNK_SIZE * 16);
+            buffer.asLongBuffer().put(times, 0, CHUNK_SIZE);
+            buffer.position(CHUNK_SIZE * 24);
+            buffer.asFloatBuffer().put(speeds, 0, CHUNK_SIZE);
+            buffer.position(CHUNK_SIZE * 28);
+            buffer.asFloatBuffer().put(accuracies, 0, CHUNK_SIZE);
+            buffer.position(CHUNK_SIZE * 32);
+            buffer.put(flags, 0, CHUNK_SIZE);
+
+            // no need to sync, the files don't survive the process
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(buffer.array());
+            } finally {
+                out.close();
+            }
+        }
+
+        /** Reads CHUNK_SIZE locations from the given file, see write() */
+        static Columns read(final File file) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE * BYTES_PER_LOCATION).order(ByteOrder.nativeOrder());
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                int n;
+                while (buffer.hasRemaining() && (n = in.read(buffer.array(), buffer.position(), buffer.remaining())) > 0) {
+                    buffer.position(buffer.position() + n);
+                }
+            } finally {
+                in.close();
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("incomplete file " + file);
+            }
+
+            final Columns columns = new Columns(CHUNK_SIZE);
+            buffer.position(0);
+            buffer.asDoubleBuffer().get(columns.latitudes);
+            buffer.position(CHUNK_SIZE * 8);
+            buffer.asDoubleBuffer().get(columns.longitudes);
+            buffer.position(CHUNK_SIZE * 16);
+            buffer.asLongBuffer().get(columns.times);
+            buffer.position(CHUNK_SIZE * 24);
+            buffer.asFloatBuffer().get(columns.speeds);
+            buffer.position(CHUNK_SIZE * 28);
+            buffer.asFloatBuffer().get(columns.accuracies);
+            buffer.position(CHUNK_SIZE * 32);
+            buffer.get(columns.flags);
+            return columns;
+        }
+    }
+
+    /** A full chunk, either kept in memory or spilled to a file. It can be shared by several stores. */
+    private static final class Chunk {
+        // columns, null if spilled
+        private Columns columns;
+        // file containing the columns if spilled
+        private File file;
+        // time of the last location, allows searching by time without reading spilled chunks
+        final long lastTime;
+
+        Chunk(final Columns columns) {
+            this.columns = columns;
+            lastTime = columns.times[CHUNK_SIZE - 1];
+        }
+
+        /** Returns the columns, reading them from the file if spilled. They aren't kept in memory then. */
+        synchronized Columns columns() {
+            if (columns != null) {
+                return columns;
+            }
+            try {
+                return Columns.read(file);
+            } catch (IOException e) {
+                // the file belongs to us as long as this chunk exists
+                throw new IllegalStateException("could not read spilled locations", e);
+            }
+        }
+
+        /** Writes the columns to a new file inside the given directory and releases them */
+        synchronized void spill(final File dir) throws IOException {
+            final File newFile = File.createTempFile("chunk", null, dir);
+            try {
+                columns.write(newFile);
+            } catch (IOException e) {
+                deleteFile(newFile);
+                throw e;
+            }
+            addSpillFile(new SpillFile(this, newFile));
+            file = newFile;
+            columns = null;
+        }
+    }
+
+    /** Reference to a spilled chunk for deleting its file once the chunk isn't used anymore */
+    private static final class SpillFile extends PhantomReference<Chunk> {
+        final File file;
+
+        SpillFile(final Chunk chunk, final File file) {
+            super(chunk, unusedSpillFiles);
+            this.file = file;
+        }
+    }
+
+    // files of spilled chunks, the references have to be kept until their chunks aren't used anymore
+    private static final Set<SpillFile> spillFiles = new HashSet<>();
+    private static final ReferenceQueue<Chunk> unusedSpillFiles = new ReferenceQueue<>();
+    // whether files spilled by a previous process have been deleted
+    private static boolean staleSpillFilesDeleted = false;
+
+    // full chunks (oldest first) starting at array position firstChunk
+    private Chunk[] chunks;
+    private int firstChunk = 0;
+    private int numChunks = 0;
+
+    // last chunk containing the newest location, may have a capacity below CHUNK_SIZE
+    private Columns tail;
+
+    // whether the chunk array or the last chunk are shared with a copy and have to be copied before modifying them
+    private boolean chunksShared = false;
+    private boolean tailShared = false;
+
+    // position of the first (=oldest) location inside the first chunk
+    private int head = 0;
+
+    // number of stored locations
+    private int size = 0;
+
+    // directory for spilling full chunks, null if all of them are kept in memory
+    private File spillDir;
+    // maximum number of full chunks kept in memory
+    private int maxResidentChunks;
+    // number of full chunks (starting at the first one) which have been spilled
+    private int numSpilled = 0;
+
+    // most recently accessed full chunk and its columns, avoids reading a spilled chunk for each location
+    private Chunk cachedChunk;
+    private Columns cachedColumns;
+
+    /** Creates a new empty store */
+    LocationStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a new empty store with the given initial capacity */
+    LocationStore(final int capacity) {
+        chunks = new Chunk[Math.max(capacity >> CHUNK_SHIFT, 4)];
+        tail = new Columns(Math.max(Math.min(capacity, CHUNK_SIZE), 1));
+    }
+
+    /** Creates a copy of the given store in constant time. The copy never spills chunks itself. */
+    LocationStore(final LocationStore other) {
+        chunks = other.chunks;
+        firstChunk = other.firstChunk;
+        numChunks = other.numChunks;
+        tail = other.tail;
+        head = other.head;
+        size = other.size;
+        chunksShared = tailShared = true;
+        other.chunksShared = other.tailShared = true;
+    }
+
+    /** Adds a location at the end */
+    void addLast(final MyLocation location) {
+        int count = tailCount();
+        if (count == CHUNK_SIZE) {
+            appendChunk(new Chunk(tail));
+            tail = new Columns(CHUNK_SIZE);
+            tailShared = false;
+            count = 0;
+            spillChunks();
+        } else if (count == tail.capacity()) {
+            tail = new Columns(tail, count, Math.min(count * 2, CHUNK_SIZE));
+            tailShared = false;
+        }
+        set(count, location);
+        ++size;
+    }
+
+    /** Replaces the last (=newest) location */
+    void replaceLast(final MyLocation location) {
+        if (size == 0) {
+            throw new java.util.NoSuchElementException();
+        }
+        // the newest location is always inside the last chunk
+        set(tailCount() - 1, location);
+    }
+
+    /** Removes the first (=oldest) location */
+    void removeFirst() {
+        if (size == 0) {
+            throw new java.util.NoSuchElementException();
+        }
+        ++head;
+        --size;
+        if (head == CHUNK_SIZE && numChunks > 0) {
+            // drop the first chunk, copies may still use it
+            if (cachedChunk == chunks[firstChunk]) {
+                cachedChunk = null;
+                cachedColumns = null;
+            }
+            if (!chunksShared) {
+                chunks[firstChunk] = null;
+            }
+            if (numSpilled > 0) {
+                --numSpilled;
+            }
+            ++firstChunk;
+            --numChunks;
+            head = 0;
+        }
+        if (size == 0) {
+            // start at the beginning of the last chunk again
+            head = 0;
+        }
+    }
+
+    /** Removes all locations and releases the memory of large columns */
+    void clear() {
+        chunks = new Chunk[4];
+        firstChunk = 0;
+        numChunks = 0;
+        tail = new Columns(DEFAULT_CAPACITY);
+        chunksShared = tailShared = false;
+        head = 0;
+        size = 0;
+        numSpilled = 0;
+        cachedChunk = null;
+        cachedColumns = null;
+    }
+
+    /**
+     * Keeps at most maxBytes of the oldest locations in memory, spilling the exceeding ones to files
+     * inside the given directory. The newest locations (up to a chunk) and the most recently accessed
+     * chunk are always kept in addition.
+     */
+    void setMemoryBudget(final File dir, final int maxBytes) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "setMemoryBudget(): could not create " + dir);
+            return;
+        }
+        deleteStaleSpillFiles(dir);
+        spillDir = dir;
+        maxResidentChunks = Math.max(maxBytes / (CHUNK_SIZE * BYTES_PER_LOCATION), 1);
+        spillChunks();
+    }
+
+    /** Returns the number of stored locations */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copies the location at the given index (0 = oldest) into the given object and returns it.
+     * This allows reusing a single object when iterating over all locations.
+     */
+    MyLocation get(final int index, final MyLocation location) {
+        final int pos = checkedPosition(index);
+        final Columns chunk = columns(pos >> CHUNK_SHIFT);
+        final int i = pos & CHUNK_MASK;
+        location.latitude = chunk.latitudes[i];
+        location.longitude = chunk.longitudes[i];
+        location.time = chunk.times[i];
+        location.speed = chunk.speeds[i];
+        location.accuracy = chunk.accuracies[i];
+        location.hasSpeed = (chunk.flags[i] & FLAG_HAS_SPEED) != 0;
+        location.hasAccuracy = (chunk.flags[i] & FLAG_HAS_ACCURACY) != 0;
+        return location;
+    }
+
+    /** Returns the time of the location at the given index */
+    long time(final int index) {
+        final int pos = checkedPosition(index);
+        return columns(pos >> CHUNK_SHIFT).times[pos & CHUNK_MASK];
+    }
+
+    /**
+     * Returns the index of the first location whose time isn't before the given one, size() if there
+     * is none. Requires non-decreasing times. Takes O(log n) and reads a single chunk only.
+     */
+    int lowerBound(final long time) {
+        // first full chunk ending at or after the given time, otherwise the last chunk
+        int low = 0;
+        int high = numChunks;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (chunks[firstChunk + mid].lastTime < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        final long[] times = columns(low).times;
+        int from = low == 0 ? head : 0;
+        int to = low < numChunks ? CHUNK_SIZE : tailCount();
+        while (from < to) {
+            final int mid = (from + to) >>> 1;
+            if (times[mid] < time) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return (low << CHUNK_SHIFT) + from - head;
+    }
+
+    /**
+     * Returns all locations column-wise in native byte order: latitudes, longitudes, times, speeds,
+     * accuracies and flags. Each column is copied in bulk, see get(ByteBuffer, int, int, MyLocation).
+     */
+    byte[] toByteArray() {
+        final byte[] bytes = new byte[size * BYTES_PER_LOCATION];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+        final DoubleBuffer latitudes = buffer.asDoubleBuffer();
+        buffer.position(size * 8);
+        final DoubleBuffer longitudes = buffer.asDoubleBuffer();
+        buffer.position(size * 16);
+        final LongBuffer times = buffer.asLongBuffer();
+        buffer.position(size * 24);
+        final FloatBuffer speeds = buffer.asFloatBuffer();
+        buffer.position(size * 28);
+        final FloatBuffer accuracies = buffer.asFloatBuffer();
+        buffer.position(size * 32);
+
+        int done = 0;
+        for (int c = 0; done < size; ++c) {
+            final Columns chunk = columns(c);
+            final int from = c == 0 ? head : 0;
+            final int count = Math.min(size - done, CHUNK_SIZE - from);
+            latitudes.put(chunk.latitudes, from, count);
+            longitudes.put(chunk.longitudes, from, count);
+            times.put(chunk.times, from, count);
+            speeds.put(chunk.speeds, from, count);
+            accuracies.put(chunk.accuracies, from, count);
+            buffer.put(chunk.flags, from, count);
+            done += count;
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies the location at the given index of the given column-wise representation of size
+     * locations (see toByteArray()) into the given object and returns it.
+     */
+    static MyLocation get(final ByteBuffer columns, final int size, final int index, final MyLocation location) {
+        location.latitude = columns.getDouble(index * 8);
+        location.longitude = columns.getDouble(size * 8 + index * 8);
+        location.time = columns.getLong(size * 16 + index * 8);
+        location.speed = columns.getFloat(size * 24 + index * 4);
+        location.accuracy = columns.getFloat(size * 28 + index * 4);
+        final byte flag = columns.get(size * 32 + index);
+        location.hasSpeed = (flag & FLAG_HAS_SPEED) != 0;
+        location.hasAccuracy = (flag & FLAG_HAS_ACCURACY) != 0;
+        return location;
+    }
+
+    /** Returns the position of the given index relative to the first chunk, checking bounds */
+    private int checkedPosition(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        return head + index;
+    }
+
+    /** Returns the columns of the chunk with the given index, 0 = first chunk */
+    private Columns columns(final int index) {
+        if (index >= numChunks) {
+            return tail;
+        }
+        final Chunk chunk = chunks[firstChunk + index];
+        if (chunk != cachedChunk) {
+            cachedColumns = chunk.columns();
+            cachedChunk = chunk;
+        }
+        return cachedColumns;
+    }
+
+    /** Returns the number of used array positions of the last chunk */
+    private int tailCount() {
+        return head + size - (numChunks << CHUNK_SHIFT);
+    }
+
+    /** Writes the given location to the given array position of the last chunk */
+    private void set(final int i, final MyLocation location) {
+        if (tailShared) {
+            tail = new Columns(tail, tailCount(), tail.capacity());
+            tailShared = false;
+        }
+        tail.latitudes[i] = location.latitude;
+        tail.longitudes[i] = location.longitude;
+        tail.times[i] = location.time;
+        tail.speeds[i] = location.speed;
+        tail.accuracies[i] = location.accuracy;
+        tail.flags[i] = (byte)((location.hasSpeed ? FLAG_HAS_SPEED : 0) | (location.hasAccuracy ? FLAG_HAS_ACCURACY : 0));
+    }
+
+    /** Appends the given full chunk, copying the chunk array if it is shared or full */
+    private void appendChunk(final Chunk chunk) {
+        if (chunksShared || firstChunk + numChunks == chunks.length) {
+            final Chunk[] newChunks = new Chunk[Math.max((numChunks + 1) * 2, 4)];
+            System.arraycopy(chunks, firstChunk, newChunks, 0, numChunks);
+            chunks = newChunks;
+            firstChunk = 0;
+            chunksShared = false;
+        }
+        chunks[firstChunk + numChunks] = chunk;
+        ++numChunks;
+    }
+
+    /** Spills the oldest full chunks exceeding the memory budget */
+    private void spillChunks() {
+        if (spillDir == null) {
+            return;
+        }
+        deleteUnusedSpillFiles();
+        while (numChunks - numSpilled > maxResidentChunks) {
+            try {
+                chunks[firstChunk + numSpilled].spill(spillDir);
+            } catch (IOException e) {
+                // keep it in memory, we will try again with the next chunk
+                Log.w(TAG, "spillChunks(): " + e);
+                return;
+            }
+            ++numSpilled;
+        }
+    }
+
+    private static synchronized void addSpillFile(final SpillFile spillFile) {
+        spillFiles.add(spillFile);
+    }
+
+    /** Deletes the files of spilled chunks which aren't used by any store anymore */
+    private static synchronized void deleteUnusedSpillFiles() {
+        SpillFile spillFile;
+        while ((spillFile = (SpillFile)unusedSpillFiles.poll()) != null) {
+            spillFiles.remove(spillFile);
+            deleteFile(spillFile.file);
+        }
+    }
+
+    /** Deletes all files inside the given directory once per process, they have been spilled by a previous one */
+    private static synchronized void deleteStaleSpillFiles(final File dir) {
+        if (staleSpillFilesDeleted) {
+            return;
+        }
+        staleSpillFilesDeleted = true;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    private static void deleteFile(final File file) {
+        if (!file.delete()) {
+            Log.w(TAG, "deleteFile(): could not delete " + file);
+        }
+    }
+}
@@ -35,11 +35,30 @@ class MyLocation implements Parcelable, Serializable {
         accuracy = hasAccuracy ? location.getAccuracy() : 0.0f;
     }
 
-    /** computes the distance in meters between two locations */
+    /** creates a new empty location object, e.g. for reading locations from a LocationStore */
+    MyLocation() {
+    }
+
+    /** creates a new location object from its single values */
+    MyLocation(final double latitude, final double longitude, final long time,
+               final boolean hasSpeed, final float speed, final boolean hasAccuracy, final float accuracy) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.time = time;
+        this.hasSpeed = hasSpeed;
+        this.speed = speed;
+        this.hasAccuracy = hasAccuracy;
+        this.accuracy = accuracy;
+    }
+
+    /** computes the distance in meters between two locations, see DistanceStrategy.FAST */
     float distanceTo(final MyLocation other) {
-        float dist[] = new float[1];
-        Location.distanceBetween(latitude, longitude, other.latitude, other.longitude, dist);
-        return dist[0];
+        return distanceTo(other, DistanceStrategy.FAST);
+    }
+
+    /** computes the distance in meters between two locations using the given strategy */
+    float distanceTo(final MyLocation other, final DistanceStrategy strategy) {
+        return (float)strategy.distance(latitude, longitude, other.latitude, other.longitude);
     }
 
     /** creates a new location from a Parcel */
@@ -47,7 +66,9 @@ class MyLocation implements Parcelable, Serializable {
         latitude = in.readDouble();
         longitude = in.readDouble();
         time = in.readLong();
+        hasSpeed = in.readByte() != 0;
         speed = in.readFloat();
+        hasAccuracy = in.readByte() != 0;
         accuracy = in.readFloat();
     }
 
@@ -57,7 +78,9 @@ class MyLocation implements Parcelable, Serializable {
         parcel.writeDouble(latitude);
         parcel.writeDouble(longitude);
         parcel.writeLong(time);
+        parcel.writeByte((byte)(hasSpeed ? 1 : 0));
         parcel.writeFloat(speed);
+        parcel.writeByte((byte)(hasAccuracy ? 1 : 0));
         parcel.writeFloat(accuracy);
     }
 
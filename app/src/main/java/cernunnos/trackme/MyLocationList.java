@@ -3,94 +3,280 @@ package cernunnos.trackme;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.io.Serializable;
-import java.util.ArrayDeque;
-import java.util.Iterator;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
- * Contains a list of locations. This list is both parcelable as well as serializable.
+ * Contains a list of locations. This list is parcelable, the locations are flattened column-wise
+ * into a single byte array (see LocationStore.toByteArray()) instead of one Parcelable each.
  *
  * The last location contained in the list should be always the newest one.
+ * Locations are stored column-wise, see LocationStore. Copies take constant time since they
+ * share the stored locations with the original.
  */
-class MyLocationList implements Parcelable, Serializable {
+class MyLocationList implements Parcelable {
 
-    class Statistics implements Serializable {
+    /**
+     * Statistics about the stored locations.
+     * Objects of this class are immutable and can be handed to other components safely.
+     */
+    static class Statistics implements Parcelable {
+        // number of locations
+        final int numLocations;
         // distance in total (in meters)
-        double distanceTotal = 0;
+        final double distanceTotal;
         // distance from the last location measurement (in meters)
-        double distanceLast = 0;
+        final double distanceLast;
         // average speed
-        double speedAvg = 0.0;
+        final double speedAvg;
         // speed since the last location measurement (in km/h)
-        double speedLast = 0.0;
+        final double speedLast;
         // max speed (in km/h)
-        double speedMax = 0.0;
+        final double speedMax;
         // duration (in milliseconds)
-        long duration = 0;
+        final long duration;
 
-        Statistics(final ArrayDeque<MyLocation> locations) {
-            if (locations.size() > 0) {
-                final MyLocation lastLocation = locations.getLast();
-                if (lastLocation.hasSpeed) {
-                    speedLast = lastLocation.speed * 3.6;
-                }
+        Statistics(final int numLocations, final double distanceTotal, final double distanceLast,
+                   final double speedAvg, final double speedLast, final double speedMax, final long duration) {
+            this.numLocations = numLocations;
+            this.distanceTotal = distanceTotal;
+            this.distanceLast = distanceLast;
+            this.speedAvg = speedAvg;
+            this.speedLast = speedLast;
+            this.speedMax = speedMax;
+            this.duration = duration;
+        }
+
+        /** Create statistics from a Parcel */
+        private Statistics(Parcel in) {
+            numLocations = in.readInt();
+            distanceTotal = in.readDouble();
+            distanceLast = in.readDouble();
+            speedAvg = in.readDouble();
+            speedLast = in.readDouble();
+            speedMax = in.readDouble();
+            duration = in.readLong();
+        }
+
+        /** Flatten these statistics into a Parcel */
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            out.writeInt(numLocations);
+            out.writeDouble(distanceTotal);
+            out.writeDouble(distanceLast);
+            out.writeDouble(speedAvg);
+            out.writeDouble(speedLast);
+            out.writeDouble(speedMax);
+            out.writeLong(duration);
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        public static final Creator<Statistics> CREATOR = new Creator<Statistics>() {
+            @Override
+            public Statistics createFromParcel(Parcel in) {
+                return new Statistics(in);
             }
 
-            if (locations.size() > 1) {
-                final Iterator<MyLocation> it = locations.iterator();
-                MyLocation prevLocation = it.next();
-                speedAvg = prevLocation.speed;
-                speedMax = prevLocation.speed;
-                while (true) {
-                    final MyLocation curLocation = it.next();
-                    distanceTotal += prevLocation.distanceTo(curLocation);
-                    // we could replace the current speedAvg calculation by distance / time.
-                    // however distance is inaccurate, especially with low recording intervals.
-                    speedAvg += curLocation.speed;
-                    speedMax = Math.max(speedMax, curLocation.speed);
-
-                    if (!it.hasNext()) {
-                        distanceLast = curLocation.distanceTo(prevLocation);
-                        break;
-                    }
-
-                    prevLocation = curLocation;
-                }
-                speedAvg /= locations.size();
+            @Override
+            public Statistics[] newArray(final int size) {
+                return new Statistics[size];
+            }
+        };
+    }
+
+    /**
+     * Keeps track of the maximum speed of all locations inside the list.
+     *
+     * This is a monotonic queue: it contains the speed of a location only if there is no faster one
+     * added later on, so its speeds are decreasing and the first one is the maximum. Adding a location
+     * removes all slower ones from the end, removing the first location of the list removes its entry
+     * if it is still contained. Both operations take amortized constant time.
+     *
+     * The last location of the list is not contained since it might get replaced, it is added once
+     * a newer location gets added.
+     */
+    private static class SpeedMaxQueue {
+        // positions (see MyLocationList.firstPosition) and speeds of the contained locations
+        private long[] positions = new long[16];
+        private float[] speeds = new float[16];
+        // ring buffer state
+        private int head = 0;
+        private int size = 0;
+
+        /** Creates a new empty queue */
+        SpeedMaxQueue() {
+        }
+
+        /** Creates a copy of the given queue */
+        SpeedMaxQueue(final SpeedMaxQueue other) {
+            positions = other.positions.clone();
+            speeds = other.speeds.clone();
+            head = other.head;
+            size = other.size;
+        }
 
-                // convert from m/s to km/h
-                speedAvg *= 3.6;
-                speedMax *= 3.6;
+        /** Adds the location with the given position and speed */
+        void addLast(final long position, final float speed) {
+            while (size > 0 && speeds[index(size - 1)] <= speed) {
+                --size;
+            }
+            if (size == positions.length) {
+                grow();
+            }
+            positions[index(size)] = position;
+            speeds[index(size)] = speed;
+            ++size;
+        }
 
-                duration = locations.getLast().time - locations.getFirst().time;
+        /** Removes the location with the given position if it is the first one */
+        void removeFirst(final long position) {
+            if (size > 0 && positions[head] == position) {
+                head = index(1);
+                --size;
             }
         }
+
+        /** Returns the maximum speed or 0 if empty */
+        float max() {
+            return size > 0 ? speeds[head] : 0.0f;
+        }
+
+        /** Removes all entries */
+        void clear() {
+            head = 0;
+            size = 0;
+        }
+
+        private int index(final int i) {
+            return (head + i) % positions.length;
+        }
+
+        private void grow() {
+            final long[] newPositions = new long[positions.length * 2];
+            final float[] newSpeeds = new float[speeds.length * 2];
+            for (int i = 0; i < size; ++i) {
+                newPositions[i] = positions[index(i)];
+                newSpeeds[i] = speeds[index(i)];
+            }
+            positions = newPositions;
+            speeds = newSpeeds;
+            head = 0;
+        }
     }
 
     // list of locations
-    private ArrayDeque<MyLocation> locations;
+    private LocationStore locations;
+
+    // location statistics, cached until the next modification
+    private Statistics statistics;
+
+    // running aggregates for computing statistics in constant time.
+    // they are updated whenever a location gets added or removed.
+    // sum of distances between consecutive locations (in meters)
+    private double distanceSum = 0;
+    // distance between the last two locations (in meters)
+    private double distanceLast = 0;
+    // sum of all speeds (in m/s)
+    private double speedSum = 0;
+    // maximum speed of all locations except the last one
+    private SpeedMaxQueue speedMax = new SpeedMaxQueue();
+    // number of locations removed so far, i.e. the position of the first location.
+    // the position of a location doesn't change when removing older ones.
+    private long firstPosition = 0;
+    // number of locations which are older than their predecessor. queries by time use binary
+    // search only if there are none, which is the usual case.
+    private int numTimeInversions = 0;
 
-    // location statistics, doesn't need to be serializable
-    private transient Statistics statistics;
+    // reusable location objects for updating the aggregates
+    private final MyLocation tmpLocation1 = new MyLocation();
+    private final MyLocation tmpLocation2 = new MyLocation();
 
     /* Add a new location */
     void addLast(final MyLocation location) {
+        if (locations.size() > 0) {
+            final MyLocation prevLocation = locations.get(locations.size() - 1, tmpLocation1);
+            distanceLast = prevLocation.distanceTo(location);
+            distanceSum += distanceLast;
+            // the previous location can't be replaced anymore
+            speedMax.addLast(firstPosition + locations.size() - 1, prevLocation.speed);
+            if (location.time < prevLocation.time) {
+                ++numTimeInversions;
+            }
+        }
+        speedSum += location.speed;
         locations.addLast(location);
         statistics = null;
     }
 
+    /** Replace the last (=newest) location by the given one, e.g. if it turned out to be redundant */
+    void replaceLast(final MyLocation location) {
+        final int size = locations.size();
+        if (size > 1) {
+            final MyLocation prevLocation = locations.get(size - 2, tmpLocation1);
+            distanceSum -= distanceLast;
+            distanceLast = prevLocation.distanceTo(location);
+            distanceSum += distanceLast;
+            if (locations.time(size - 1) < prevLocation.time) {
+                --numTimeInversions;
+            }
+            if (location.time < prevLocation.time) {
+                ++numTimeInversions;
+            }
+        }
+        // subtract in double precision, float differences would accumulate rounding errors
+        speedSum -= locations.get(size - 1, tmpLocation1).speed;
+        speedSum += location.speed;
+        locations.replaceLast(location);
+        statistics = null;
+    }
+
     /** Remove the oldest location */
     void removeFirst() {
+        final MyLocation first = locations.get(0, tmpLocation1);
+        if (locations.size() > 1) {
+            final MyLocation second = locations.get(1, tmpLocation2);
+            distanceSum -= first.distanceTo(second);
+            if (second.time < first.time) {
+                --numTimeInversions;
+            }
+        }
+        speedSum -= first.speed;
+        speedMax.removeFirst(firstPosition);
         locations.removeFirst();
+        ++firstPosition;
+        if (locations.size() <= 1) {
+            // get rid of rounding errors accumulated by subtracting
+            distanceSum = 0;
+            distanceLast = 0;
+            speedSum = locations.size() == 1 ? locations.get(0, tmpLocation1).speed : 0;
+        }
         statistics = null;
     }
 
     /** Clear all locations */
     void clear() {
         locations.clear();
+        distanceSum = 0;
+        distanceLast = 0;
+        speedSum = 0;
+        speedMax.clear();
+        numTimeInversions = 0;
         statistics = null;
     }
 
+    /**
+     * Keep at most maxBytes of the oldest locations in memory and spill the exceeding ones to files
+     * inside the given directory, see LocationStore. Reading them remains transparent.
+     */
+    void setMemoryBudget(final File dir, final int maxBytes) {
+        locations.setMemoryBudget(dir, maxBytes);
+    }
+
     /** Return the number of stored locations */
     int size() {
         return locations.size();
@@ -98,48 +284,165 @@ class MyLocationList implements Parcelable, Serializable {
 
     /** Return the first (=oldest) location or null if empty */
     MyLocation getFist() {
-        return locations.isEmpty() ? null : locations.getFirst();
+        return locations.size() == 0 ? null : locations.get(0, new MyLocation());
     }
 
     /** Return the last (=newest) location or null if empty */
     MyLocation getLast() {
-        return locations.isEmpty() ? null : locations.getLast();
+        return locations.size() == 0 ? null : locations.get(locations.size() - 1, new MyLocation());
+    }
+
+    /**
+     * Copy the location at the given index (0 = oldest) into the given location object and return it.
+     * Allows iterating over all locations without allocating a new object for each location.
+     */
+    MyLocation get(final int index, final MyLocation location) {
+        return locations.get(index, location);
+    }
+
+    /**
+     * Return the index of the first location whose time isn't before the given one, size() if there
+     * is none. Takes O(log n) unless some locations are older than their predecessor, O(n) then.
+     */
+    int indexOfTime(final long time) {
+        if (numTimeInversions == 0) {
+            return locations.lowerBound(time);
+        }
+        int index = 0;
+        while (index < locations.size() && locations.time(index) < time) {
+            ++index;
+        }
+        return index;
+    }
+
+    /**
+     * Return a new list containing the locations from fromTime (inclusive) to toTime (exclusive),
+     * e.g. for exporting them or for their statistics. Takes O(log n + k) for k locations in the range.
+     */
+    MyLocationList getRange(final long fromTime, final long toTime) {
+        final MyLocationList range = new MyLocationList();
+        final MyLocation location = new MyLocation();
+        if (numTimeInversions == 0) {
+            for (int i = indexOfTime(fromTime); i < locations.size() && locations.time(i) < toTime; ++i) {
+                range.addLast(locations.get(i, location));
+            }
+        } else {
+            for (int i = 0; i < locations.size(); ++i) {
+                final long time = locations.time(i);
+                if (time >= fromTime && time < toTime) {
+                    range.addLast(locations.get(i, location));
+                }
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Return the location at the given time, interpolated linearly between the locations before and
+     * after it. Returns null if the time is before the first or after the last location.
+     * Takes O(log n), see indexOfTime().
+     */
+    MyLocation getLocationAt(final long time) {
+        final int index = indexOfTime(time);
+        if (index == locations.size()) {
+            return null;
+        }
+        final MyLocation after = locations.get(index, new MyLocation());
+        if (after.time == time) {
+            return after;
+        }
+        if (index == 0) {
+            return null;
+        }
+        final MyLocation before = locations.get(index - 1, tmpLocation1);
+        final double ratio = (double)(time - before.time) / (after.time - before.time);
+        final MyLocation location = new MyLocation();
+        location.latitude = before.latitude + (after.latitude - before.latitude) * ratio;
+        double dLongitude = after.longitude - before.longitude;
+        if (dLongitude > 180) {
+            dLongitude -= 360;
+        } else if (dLongitude < -180) {
+            dLongitude += 360;
+        }
+        location.longitude = before.longitude + dLongitude * ratio;
+        if (location.longitude > 180) {
+            location.longitude -= 360;
+        } else if (location.longitude < -180) {
+            location.longitude += 360;
+        }
+        location.time = time;
+        location.hasSpeed = before.hasSpeed && after.hasSpeed;
+        location.speed = location.hasSpeed ? (float)(before.speed + (after.speed - before.speed) * ratio) : 0.0f;
+        location.hasAccuracy = before.hasAccuracy && after.hasAccuracy;
+        location.accuracy = location.hasAccuracy ? Math.max(before.accuracy, after.accuracy) : 0.0f;
+        return location;
     }
 
-    /** Return various statistics about the stored locations */
+    /** Return various statistics about the stored locations, computed in constant time */
     Statistics getStatistics() {
         // cache result
         if (statistics == null) {
-            statistics = new Statistics(locations);
+            statistics = computeStatistics();
         }
         return statistics;
     }
 
-    /**
-     * Return a copy of the list of locations.
-     * Note: Don't return the actual list since modifying it will make our statistics cache wrong.
-     */
-    ArrayDeque<MyLocation> get() {
-        return new ArrayDeque<>(locations);
+    /** Compute statistics from the running aggregates */
+    private Statistics computeStatistics() {
+        final int size = locations.size();
+        double speedLast = 0.0;
+        if (size > 0) {
+            final MyLocation lastLocation = locations.get(size - 1, tmpLocation1);
+            if (lastLocation.hasSpeed) {
+                speedLast = lastLocation.speed * 3.6;
+            }
+        }
+        if (size <= 1) {
+            return new Statistics(size, 0, 0, 0, speedLast, 0, 0);
+        }
+
+        // we could replace the current speedAvg calculation by distance / time.
+        // however distance is inaccurate, especially with low recording intervals.
+        // speeds are converted from m/s to km/h
+        final double speedMaxAll = Math.max(speedMax.max(), locations.get(size - 1, tmpLocation1).speed);
+        return new Statistics(size, distanceSum, distanceLast, speedSum / size * 3.6, speedLast, speedMaxAll * 3.6,
+                locations.time(size - 1) - locations.time(0));
     }
 
     /** Create a new empty location list */
     MyLocationList() {
-        locations = new ArrayDeque<>();
+        locations = new LocationStore();
     }
 
     /** Create a new location list of the given size */
     public MyLocationList(final int size) {
-        locations = new ArrayDeque<>(size);
+        locations = new LocationStore(size);
+    }
+
+    /**
+     * Create a copy of the given location list, e.g. for handing it to another thread while
+     * continuing to modify the original
+     */
+    MyLocationList(final MyLocationList other) {
+        locations = new LocationStore(other.locations);
+        statistics = other.statistics;
+        distanceSum = other.distanceSum;
+        distanceLast = other.distanceLast;
+        speedSum = other.speedSum;
+        speedMax = new SpeedMaxQueue(other.speedMax);
+        firstPosition = other.firstPosition;
+        numTimeInversions = other.numTimeInversions;
     }
 
     /** Create a new location list from a Parcel */
     private MyLocationList(Parcel in) {
-        int size = in.readInt();
-        locations = new ArrayDeque<>(size);
+        final int size = in.readInt();
+        final ByteBuffer columns = ByteBuffer.wrap(in.createByteArray()).order(ByteOrder.nativeOrder());
+        locations = new LocationStore(size);
+        // adding each location updates the running aggregates
+        final MyLocation location = new MyLocation();
         for (int i = 0; i < size; ++i) {
-            final MyLocation location = in.readParcelable(MyLocation.class.getClassLoader());
-            locations.addLast(location);
+            addLast(LocationStore.get(columns, size, i, location));
         }
     }
 
@@ -147,9 +450,7 @@ class MyLocationList implements Parcelable, Serializable {
     @Override
     public void writeToParcel(Parcel out, int flags) {
         out.writeInt(locations.size());
-        for (final MyLocation location : locations) {
-            out.writeParcelable(location, flags);
-        }
+        out.writeByteArray(locations.toByteArray());
     }
 
     @Override
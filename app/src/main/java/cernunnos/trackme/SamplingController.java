@@ -0,0 +1,282 @@
+package cernunnos.trackme;
+
+/**
+ * Adapts the GPS update interval to the current movement while recording.
+ *
+ * - moving: the interval is chosen so that consecutive locations are about TARGET_SPACING_METERS
+ *   apart, between DENSE_INTERVAL_MILLIS and the configured maximum interval
+ * - turning: if the heading changes by more than TURN_DEGREES between two locations the dense
+ *   interval is used until the heading is stable again
+ * - stationary: if all locations stay within STATIONARY_RADIUS_METERS for STATIONARY_MILLIS, GPS
+ *   updates are suspended. Movement is detected by coarse (network) locations or by probing GPS
+ *   every PROBE_INTERVAL_MILLIS for at most PROBE_TIMEOUT_MILLIS.
+ *
+ * The caller re-requests location updates whenever a method returns true and schedules wakeups
+ * as returned by getWakeupDelayMillis(). Times passed as "now" must be taken from a monotonic clock,
+ * e.g. SystemClock.elapsedRealtime(). Nothing gets allocated per location.
+ *
+ * Fixes per hour and the time GPS has been turned on are counted for measuring the effect.
+ */
+class SamplingController {
+    // interval in turns and at high speed
+    static final long DENSE_INTERVAL_MILLIS = 5 * 1000;
+    // desired distance between consecutive locations while moving, in meters
+    private static final double TARGET_SPACING_METERS = 100;
+    // minimum change of heading between two locations for considering it a turn, in degrees
+    private static final double TURN_DEGREES = 30;
+    // minimum distance between two locations for computing a reliable heading, in meters
+    private static final double MIN_HEADING_DISTANCE_METERS = 10;
+    // changes of the interval by less than this factor are ignored, avoids re-requesting updates constantly
+    private static final double HYSTERESIS = 1.5;
+
+    // locations within this radius (or within their accuracy if larger) are considered stationary, in meters
+    private static final double STATIONARY_RADIUS_METERS = 25;
+    // time without leaving the radius until GPS gets suspended
+    private static final long STATIONARY_MILLIS = 3 * 60 * 1000;
+    // minimum distance of a coarse location from the stationary location for resuming GPS, in meters
+    private static final double RESUME_DISTANCE_METERS = 200;
+    // time between probing GPS while stationary
+    static final long PROBE_INTERVAL_MILLIS = 15 * 60 * 1000;
+    // maximum time for obtaining a location while probing
+    static final long PROBE_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    /** Sampling states */
+    enum State {
+        // GPS is on, the interval depends on speed and turns
+        MOVING,
+        // GPS is suspended
+        STATIONARY,
+        // GPS is on for checking whether we are still stationary
+        PROBING
+    }
+
+    // sparsest interval while moving
+    private long maxIntervalMillis;
+
+    private State state = State.MOVING;
+    private long intervalMillis = DENSE_INTERVAL_MILLIS;
+
+    // previous location
+    private boolean hasPrevious = false;
+    private double previousLatitude;
+    private double previousLongitude;
+    private long previousTime;
+    // heading from the location before to the previous location, NaN if unknown
+    private double previousHeading = Double.NaN;
+
+    // location where we possibly became stationary (or are stationary)
+    private boolean hasAnchor = false;
+    private final MyLocation anchor = new MyLocation();
+
+    // metrics
+    // time recording started
+    private long startMillis;
+    // number of received locations
+    private long numFixes = 0;
+    // time GPS has been on in total, excluding the current period
+    private long radioOnMillis = 0;
+    // time GPS has been turned on, -1 if off
+    private long radioOnSinceMillis = -1;
+
+    /** Creates a new controller whose interval doesn't exceed maxIntervalMillis while moving */
+    SamplingController(final long maxIntervalMillis) {
+        setMaxIntervalMillis(maxIntervalMillis);
+    }
+
+    /** Sets the sparsest interval while moving */
+    void setMaxIntervalMillis(final long maxIntervalMillis) {
+        this.maxIntervalMillis = Math.max(maxIntervalMillis, DENSE_INTERVAL_MILLIS);
+        intervalMillis = Math.min(intervalMillis, this.maxIntervalMillis);
+    }
+
+    /** Starts recording, GPS is turned on with the dense interval */
+    void start(final long now) {
+        state = State.MOVING;
+        intervalMillis = DENSE_INTERVAL_MILLIS;
+        hasPrevious = false;
+        previousHeading = Double.NaN;
+        hasAnchor = false;
+        startMillis = now;
+        numFixes = 0;
+        radioOnMillis = 0;
+        radioOnSinceMillis = now;
+    }
+
+    /** Stops recording */
+    void stop(final long now) {
+        radioOff(now);
+    }
+
+    /** Returns the current state */
+    State getState() {
+        return state;
+    }
+
+    /** Returns true if GPS updates are suspended */
+    boolean isSuspended() {
+        return state == State.STATIONARY;
+    }
+
+    /** Returns the interval for requesting GPS updates */
+    long getIntervalMillis() {
+        return state == State.MOVING ? intervalMillis : DENSE_INTERVAL_MILLIS;
+    }
+
+    /** Returns the delay until onWakeup() has to be called, -1 if it isn't required */
+    long getWakeupDelayMillis() {
+        switch (state) {
+            case STATIONARY:
+                return PROBE_INTERVAL_MILLIS;
+            case PROBING:
+                return PROBE_TIMEOUT_MILLIS;
+            default:
+                return -1;
+        }
+    }
+
+    /** Handles a new GPS location. Returns true if the state or interval changed. */
+    boolean onLocation(final MyLocation location, final long now) {
+        ++numFixes;
+        if (state != State.MOVING) {
+            // probing, or a single location has been requested while suspended
+            if (isNearAnchor(location, STATIONARY_RADIUS_METERS)) {
+                setState(State.STATIONARY, now);
+            } else {
+                resume(location, now);
+            }
+            return true;
+        }
+
+        // stationary detection
+        if (!hasAnchor || !isNearAnchor(location, STATIONARY_RADIUS_METERS)) {
+            setAnchor(location);
+        } else if (location.time - anchor.time >= STATIONARY_MILLIS) {
+            setState(State.STATIONARY, now);
+            return true;
+        }
+
+        // interval depending on speed and heading
+        long interval = intervalMillis;
+        if (hasPrevious && location.time > previousTime) {
+            final double distance = DistanceStrategy.FAST.distance(previousLatitude, previousLongitude,
+                    location.latitude, location.longitude);
+            final double speed = location.hasSpeed ? location.speed : distance * 1000 / (location.time - previousTime);
+            interval = speed > 0 ? (long)(TARGET_SPACING_METERS * 1000 / speed) : maxIntervalMillis;
+
+            if (distance >= Math.max(MIN_HEADING_DISTANCE_METERS, location.accuracy)) {
+                final double heading = heading(previousLatitude, previousLongitude, location.latitude, location.longitude);
+                if (!Double.isNaN(previousHeading) && headingChange(previousHeading, heading) >= TURN_DEGREES) {
+                    interval = DENSE_INTERVAL_MILLIS;
+                }
+                previousHeading = heading;
+                setPrevious(location);
+            }
+        } else {
+            setPrevious(location);
+        }
+        interval = Math.max(DENSE_INTERVAL_MILLIS, Math.min(interval, maxIntervalMillis));
+        if (interval * HYSTERESIS > intervalMillis && interval < intervalMillis * HYSTERESIS) {
+            return false;
+        }
+        intervalMillis = interval;
+        return true;
+    }
+
+    /** Handles a new coarse (e.g. network) location. Returns true if GPS has to be resumed. */
+    boolean onCoarseLocation(final MyLocation location, final long now) {
+        if (state != State.STATIONARY || isNearAnchor(location, RESUME_DISTANCE_METERS)) {
+            return false;
+        }
+        resume(location, now);
+        return true;
+    }
+
+    /** Handles a wakeup requested by getWakeupDelayMillis(). Returns true if the state changed. */
+    boolean onWakeup(final long now) {
+        switch (state) {
+            case STATIONARY:
+                setState(State.PROBING, now);
+                return true;
+            case PROBING:
+                // no location, probably indoors
+                setState(State.STATIONARY, now);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Returns the number of received locations per hour since recording started */
+    double getFixesPerHour(final long now) {
+        return now > startMillis ? numFixes * 3600000.0 / (now - startMillis) : 0;
+    }
+
+    /** Returns the time GPS has been on since recording started */
+    long getRadioOnMillis(final long now) {
+        return radioOnMillis + (radioOnSinceMillis >= 0 ? now - radioOnSinceMillis : 0);
+    }
+
+    /** Returns the ratio of time GPS has been on since recording started */
+    double getRadioOnRatio(final long now) {
+        return now > startMillis ? (double)getRadioOnMillis(now) / (now - startMillis) : 1;
+    }
+
+    /** Resumes recording with the dense interval after having moved away from the anchor */
+    private void resume(final MyLocation location, final long now) {
+        setState(State.MOVING, now);
+        intervalMillis = DENSE_INTERVAL_MILLIS;
+        hasPrevious = false;
+        previousHeading = Double.NaN;
+        setAnchor(location);
+    }
+
+    private void setState(final State state, final long now) {
+        this.state = state;
+        if (state == State.STATIONARY) {
+            radioOff(now);
+        } else if (radioOnSinceMillis < 0) {
+            radioOnSinceMillis = now;
+        }
+    }
+
+    private void radioOff(final long now) {
+        if (radioOnSinceMillis >= 0) {
+            radioOnMillis += now - radioOnSinceMillis;
+            radioOnSinceMillis = -1;
+        }
+    }
+
+    private void setAnchor(final MyLocation location) {
+        hasAnchor = true;
+        anchor.latitude = location.latitude;
+        anchor.longitude = location.longitude;
+        anchor.time = location.time;
+        anchor.hasAccuracy = location.hasAccuracy;
+        anchor.accuracy = location.accuracy;
+    }
+
+    private void setPrevious(final MyLocation location) {
+        hasPrevious = true;
+        previousLatitude = location.latitude;
+        previousLongitude = location.longitude;
+        previousTime = location.time;
+    }
+
+    /** Returns true if the given location is within the given radius (or its accuracy) of the anchor */
+    private boolean isNearAnchor(final MyLocation location, final double radius) {
+        return hasAnchor && location.distanceTo(anchor) <= Math.max(radius, location.accuracy);
+    }
+
+    /** Returns the heading from the first to the second location in degrees, projected onto a plane */
+    private static double heading(final double latitude1, final double longitude1,
+                                  final double latitude2, final double longitude2) {
+        final double x = (longitude2 - longitude1) * Math.cos(Math.toRadians((latitude1 + latitude2) / 2));
+        return Math.toDegrees(Math.atan2(x, latitude2 - latitude1));
+    }
+
+    /** Returns the absolute difference of two headings in degrees (0 to 180) */
+    private static double headingChange(final double heading1, final double heading2) {
+        final double change = Math.abs(heading2 - heading1) % 360;
+        return change > 180 ? 360 - change : change;
+    }
+}
@@ -0,0 +1,214 @@
+package cernunnos.trackme;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stores finished tracks (segments), e.g. one per recording session or per day.
+ *
+ * Each segment is written once into its own file (a compacted LocationJournal) and never modified
+ * afterwards. A small index file contains one fixed-size entry per segment with its time range,
+ * bounding box and statistics. Thus the history can be listed by reading the index only, and single
+ * segments are loaded on demand. The active segment is not part of this store, it is kept by
+ * GPSReceiver's backlog and journal.
+ */
+class SegmentStore {
+    // tag for logging
+    private static final String TAG = SegmentStore.class.getSimpleName();
+
+    // index file header: magic and format version
+    private static final int MAGIC = 0x544d5349; // "TMSI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4;
+
+    // index entry layout: id, first and last time, number of locations, bounding box, distance, max speed
+    private static final int ENTRY_SIZE = 4 + 8 + 8 + 4 + 4 * 8 + 8 + 8;
+
+    // file names inside the store directory
+    private static final String FILE_INDEX = "index";
+    private static final String FILE_SEGMENT_PREFIX = "segment-";
+
+    /** Index entry of a segment. Objects of this class are immutable. */
+    static final class Segment {
+        // unique ID, increasing with each segment
+        final int id;
+        // time of the first and the last location
+        final long firstTime;
+        final long lastTime;
+        // number of locations
+        final int numLocations;
+        // bounding box of all locations
+        final double minLatitude;
+        final double minLongitude;
+        final double maxLatitude;
+        final double maxLongitude;
+        // distance in total (in meters)
+        final double distanceTotal;
+        // max speed (in km/h)
+        final double speedMax;
+
+        Segment(final int id, final long firstTime, final long lastTime, final int numLocations,
+                final double minLatitude, final double minLongitude, final double maxLatitude, final double maxLongitude,
+                final double distanceTotal, final double speedMax) {
+            this.id = id;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.numLocations = numLocations;
+            this.minLatitude = minLatitude;
+            this.minLongitude = minLongitude;
+            this.maxLatitude = maxLatitude;
+            this.maxLongitude = maxLongitude;
+            this.distanceTotal = distanceTotal;
+            this.speedMax = speedMax;
+        }
+    }
+
+    // store directory
+    private final File dir;
+
+    // index entries (oldest first), null until the index has been read
+    private List<Segment> segments;
+
+    /** Creates a store inside the given directory */
+    SegmentStore(final File dir) {
+        this.dir = dir;
+    }
+
+    /** Returns the index entries of all segments, oldest first. Only reads the index. */
+    List<Segment> getSegments() throws IOException {
+        if (segments == null) {
+            segments = readIndex();
+        }
+        return Collections.unmodifiableList(segments);
+    }
+
+    /** Stores the given (non-empty) locations as a new segment and returns its index entry */
+    Segment add(final MyLocationList locations) throws IOException {
+        final List<Segment> all = getSegments();
+        final int id = all.isEmpty() ? 1 : all.get(all.size() - 1).id + 1;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+
+        // the segment file is complete before the index refers to it. if we get killed in between,
+        // the orphaned file gets overwritten by the next segment.
+        new LocationJournal(segmentFile(id)).compact(locations);
+        final Segment segment = createSegment(id, locations);
+        appendIndex(segment);
+        segments.add(segment);
+        Log.v(TAG, "add(): segment " + id + " with " + segment.numLocations + " locations");
+        return segment;
+    }
+
+    /** Loads the locations of the given segment */
+    MyLocationList load(final Segment segment) throws IOException {
+        return new LocationJournal(segmentFile(segment.id)).replay();
+    }
+
+    /** Deletes all segments */
+    void clear() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (!file.delete()) {
+                    Log.w(TAG, "clear(): could not delete " + file);
+                }
+            }
+        }
+        segments = new ArrayList<>();
+    }
+
+    private File segmentFile(final int id) {
+        return new File(dir, FILE_SEGMENT_PREFIX + id);
+    }
+
+    /** Creates the index entry for the given locations */
+    private static Segment createSegment(final int id, final MyLocationList locations) {
+        double minLatitude = Double.MAX_VALUE;
+        double minLongitude = Double.MAX_VALUE;
+        double maxLatitude = -Double.MAX_VALUE;
+        double maxLongitude = -Double.MAX_VALUE;
+        final MyLocation location = new MyLocation();
+        for (int i = 0; i < locations.size(); ++i) {
+            locations.get(i, location);
+            minLatitude = Math.min(minLatitude, location.latitude);
+            minLongitude = Math.min(minLongitude, location.longitude);
+            maxLatitude = Math.max(maxLatitude, location.latitude);
+            maxLongitude = Math.max(maxLongitude, location.longitude);
+        }
+        final MyLocationList.Statistics stats = locations.getStatistics();
+        return new Segment(id, locations.getFist().time, locations.getLast().time, locations.size(),
+                minLatitude, minLongitude, maxLatitude, maxLongitude, stats.distanceTotal, stats.speedMax);
+    }
+
+    /** Appends the given entry to the index file, overwriting an incomplete trailing entry */
+    private void appendIndex(final Segment segment) throws IOException {
+        final File file = new File(dir, FILE_INDEX);
+        final long length = file.length();
+        final boolean exists = length >= HEADER_SIZE;
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + ENTRY_SIZE);
+        if (!exists) {
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+        }
+        buffer.putInt(segment.id);
+        buffer.putLong(segment.firstTime);
+        buffer.putLong(segment.lastTime);
+        buffer.putInt(segment.numLocations);
+        buffer.putDouble(segment.minLatitude);
+        buffer.putDouble(segment.minLongitude);
+        buffer.putDouble(segment.maxLatitude);
+        buffer.putDouble(segment.maxLongitude);
+        buffer.putDouble(segment.distanceTotal);
+        buffer.putDouble(segment.speedMax);
+
+        final long position = exists ? length - (length - HEADER_SIZE) % ENTRY_SIZE : 0;
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(position);
+            out.write(buffer.array(), 0, buffer.position());
+            out.setLength(position + buffer.position());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Reads all entries of the index file. An incomplete trailing entry is ignored. */
+    private List<Segment> readIndex() throws IOException {
+        final List<Segment> result = new ArrayList<>();
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, FILE_INDEX))));
+        } catch (FileNotFoundException e) {
+            return result;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("invalid segment index header");
+            }
+            while (true) {
+                result.add(new Segment(in.readInt(), in.readLong(), in.readLong(), in.readInt(),
+                        in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+                        in.readDouble(), in.readDouble()));
+            }
+        } catch (EOFException e) {
+            // end of index, possibly inside an incomplete entry
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+}
@@ -227,8 +227,8 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         public void onDestroy() {
             super.onDestroy();
             Log.v(TAG, "onDestroy()");
-            // tell FTP service to update its settings
-            FTPService.startActionReReadSettings(getActivity().getApplicationContext());
+            // tell upload service to update its settings
+            UploadService.startActionReReadSettings(getActivity().getApplicationContext());
             // tell GPS receiver service to update its settings (upload interval)
             GPSReceiver.startActionReReadSettings(getActivity().getApplicationContext());
         }
@@ -0,0 +1,163 @@
+package cernunnos.trackme;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Detects stays, i.e. runs of locations which don't leave a small radius, while recording.
+ *
+ * The first location of a run (=arrival) is stored as usual. Further locations within the radius of
+ * the arrival (or within their accuracy if larger) are held back, they are mostly GPS noise while
+ * standing still. The radius is measured from the arrival rather than from the centroid, which would
+ * drift along with slow movement. Once a location leaves the radius, the run ends. If it lasted at
+ * least the minimum duration it is reported as stay with its centroid, start, end and number of
+ * locations, otherwise the held back locations are released for being stored after all, since they
+ * belong to slow movement or a short stop.
+ *
+ * Held back locations are only kept until the run has lasted the minimum duration, it is going to be
+ * a stay then.
+ */
+class StayPointDetector {
+    /** A stay, reused for each detected stay */
+    static final class Stay {
+        // centroid of all locations
+        double latitude;
+        double longitude;
+        // time of the first and the last location
+        long start;
+        long end;
+        // number of locations
+        int count;
+    }
+
+    // radius of a stay in meters
+    private final double radius;
+    // minimum duration of a stay in milliseconds
+    private final long minDurationMillis;
+
+    // current run
+    private boolean hasRun = false;
+    private double sumLatitude;
+    private double sumLongitude;
+    private int count;
+    private long start;
+    private long end;
+    // first location of the current run
+    private final MyLocation arrival = new MyLocation();
+    // held back locations of the current run, as long as it might end before the minimum duration
+    private ArrayList<MyLocation> heldBack = new ArrayList<>();
+
+    // held back locations of the most recently ended run if it hasn't been a stay
+    private ArrayList<MyLocation> released = new ArrayList<>();
+
+    // most recently ended stay
+    private final Stay stay = new Stay();
+    private boolean stayEnded = false;
+
+    // statistics
+    // number of suppressed locations
+    private long numSuppressed = 0;
+
+    /** Creates a new detector for stays within the given radius in meters lasting at least minDurationMillis */
+    StayPointDetector(final double radius, final long minDurationMillis) {
+        this.radius = radius;
+        this.minDurationMillis = minDurationMillis;
+    }
+
+    /**
+     * Handles a new location. Returns true if it is part of the current run and shouldn't be stored.
+     * Otherwise the run has ended: stayEnded() tells whether it has been a stay and getReleased()
+     * returns its locations to be stored before the given one.
+     */
+    boolean add(final MyLocation location) {
+        stayEnded = false;
+        released.clear();
+        if (hasRun && location.distanceTo(arrival) <= Math.max(radius, location.accuracy)) {
+            sumLatitude += location.latitude;
+            sumLongitude += location.longitude;
+            ++count;
+            end = location.time;
+            if (end - start < minDurationMillis) {
+                heldBack.add(location);
+            } else {
+                // the run is going to be a stay
+                heldBack.clear();
+            }
+            ++numSuppressed;
+            return true;
+        }
+        endRun();
+        hasRun = true;
+        sumLatitude = location.latitude;
+        sumLongitude = location.longitude;
+        count = 1;
+        start = end = location.time;
+        arrival.latitude = location.latitude;
+        arrival.longitude = location.longitude;
+        return false;
+    }
+
+    /**
+     * Ends the current run, e.g. when recording stops. Returns true if it was a stay, see getStay().
+     * Otherwise getReleased() returns its locations to be stored.
+     */
+    boolean finish() {
+        stayEnded = false;
+        released.clear();
+        endRun();
+        hasRun = false;
+        return stayEnded;
+    }
+
+    /** Forgets the current run, e.g. after all locations have been deleted */
+    void reset() {
+        hasRun = false;
+        stayEnded = false;
+        heldBack.clear();
+        released.clear();
+    }
+
+    /** Returns true if the last call of add() or finish() ended a stay */
+    boolean stayEnded() {
+        return stayEnded;
+    }
+
+    /**
+     * Returns the locations held back by the run which the last call of add() or finish() ended
+     * without a stay, oldest first. They are valid until the next call of add(), finish() or reset().
+     */
+    List<MyLocation> getReleased() {
+        return released;
+    }
+
+    /** Returns the most recently ended stay. It gets overwritten by the next one. */
+    Stay getStay() {
+        return stay;
+    }
+
+    /** Returns the number of suppressed locations */
+    long getNumSuppressed() {
+        return numSuppressed;
+    }
+
+    private void endRun() {
+        if (!hasRun) {
+            return;
+        }
+        if (count < 2 || end - start < minDurationMillis) {
+            // reuse the lists instead of copying
+            final ArrayList<MyLocation> tmp = released;
+            released = heldBack;
+            heldBack = tmp;
+            numSuppressed -= released.size();
+            return;
+        }
+        heldBack.clear();
+        stay.latitude = sumLatitude / count;
+        stay.longitude = sumLongitude / count;
+        stay.start = start;
+        stay.end = end;
+        stay.count = count;
+        stayEnded = true;
+    }
+}
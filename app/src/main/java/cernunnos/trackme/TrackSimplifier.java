@@ -0,0 +1,160 @@
+package cernunnos.trackme;
+
+/**
+ * Simplifies a track while recording it by dropping locations which don't contribute to its shape.
+ *
+ * This is an online variant of the Douglas-Peucker algorithm (opening window): the newest location
+ * is kept tentatively. Once another location arrives we check whether the tentative one, as well as
+ * all locations dropped since the last kept one (=anchor), are closer than the tolerance to a straight
+ * line from the anchor to the new location. If so the tentative location is redundant and gets
+ * replaced by the new one. Otherwise it is kept and becomes the new anchor.
+ *
+ * Thus the newest location is always part of the track. Nothing gets allocated per location.
+ */
+class TrackSimplifier {
+    // maximum number of dropped locations between two kept ones.
+    // limits the work per location on very long straight lines.
+    private static final int MAX_DROPPED = 64;
+
+    // mean earth radius in meters
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    // dropped locations are closer than this to the simplified track, in meters.
+    // 0 keeps all locations, even exactly collinear ones.
+    private final double tolerance;
+
+    // last kept location
+    private boolean hasAnchor = false;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    // cos(anchorLatitude) for projecting locations around the anchor onto a plane
+    private double anchorCosLatitude;
+
+    // tentative location, i.e. the newest one
+    private boolean hasTentative = false;
+    private double tentativeLatitude;
+    private double tentativeLongitude;
+
+    // locations dropped since the anchor
+    private final double[] droppedLatitudes = new double[MAX_DROPPED];
+    private final double[] droppedLongitudes = new double[MAX_DROPPED];
+    private int numDropped = 0;
+
+    // statistics
+    // number of received locations
+    private long numReceived = 0;
+    // number of dropped locations
+    private long numDroppedTotal = 0;
+    // maximum distance of a dropped location to the simplified track, in meters
+    private double maxDeviation = 0;
+
+    /** Creates a new simplifier with the given tolerance in meters */
+    TrackSimplifier(final double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Handles a new location. Returns true if the previous location (i.e. the newest location passed
+     * to this method before) is redundant and should be replaced by the new one. Returns false if the
+     * new location should be added.
+     */
+    boolean add(final MyLocation location) {
+        ++numReceived;
+        if (!hasTentative || !hasAnchor) {
+            if (hasTentative) {
+                setAnchor(tentativeLatitude, tentativeLongitude);
+            }
+            setTentative(location);
+            return false;
+        }
+
+        double deviation = 0;
+        if (numDropped < MAX_DROPPED) {
+            deviation = deviation(tentativeLatitude, tentativeLongitude, location);
+            for (int i = 0; i < numDropped && deviation < tolerance; ++i) {
+                deviation = Math.max(deviation, deviation(droppedLatitudes[i], droppedLongitudes[i], location));
+            }
+        }
+        if (numDropped < MAX_DROPPED && deviation < tolerance) {
+            // tentative location is redundant
+            droppedLatitudes[numDropped] = tentativeLatitude;
+            droppedLongitudes[numDropped] = tentativeLongitude;
+            ++numDropped;
+            ++numDroppedTotal;
+            maxDeviation = Math.max(maxDeviation, deviation);
+            setTentative(location);
+            return true;
+        }
+
+        // keep tentative location
+        setAnchor(tentativeLatitude, tentativeLongitude);
+        setTentative(location);
+        return false;
+    }
+
+    /** Forgets about all previous locations, e.g. after clearing them */
+    void reset() {
+        hasAnchor = false;
+        hasTentative = false;
+        numDropped = 0;
+    }
+
+    /** Returns the fraction of received locations which have been kept */
+    double getRetainedRatio() {
+        return numReceived == 0 ? 1.0 : (double)(numReceived - numDroppedTotal) / numReceived;
+    }
+
+    /** Returns the maximum distance of a dropped location to the simplified track, in meters */
+    double getMaxDeviation() {
+        return maxDeviation;
+    }
+
+    private void setAnchor(final double latitude, final double longitude) {
+        hasAnchor = true;
+        anchorLatitude = latitude;
+        anchorLongitude = longitude;
+        anchorCosLatitude = Math.cos(Math.toRadians(latitude));
+        numDropped = 0;
+    }
+
+    private void setTentative(final MyLocation location) {
+        hasTentative = true;
+        tentativeLatitude = location.latitude;
+        tentativeLongitude = location.longitude;
+    }
+
+    /**
+     * Returns the distance in meters of the given point to the line segment from the anchor to the
+     * given location. Uses an equirectangular projection around the anchor which is accurate enough
+     * for the distances between consecutive locations.
+     */
+    private double deviation(final double latitude, final double longitude, final MyLocation end) {
+        // project to plane, anchor = origin
+        final double px = projectX(longitude);
+        final double py = projectY(latitude);
+        final double ex = projectX(end.longitude);
+        final double ey = projectY(end.latitude);
+
+        final double lengthSquared = ex * ex + ey * ey;
+        double t = lengthSquared > 0 ? (px * ex + py * ey) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        final double dx = px - t * ex;
+        final double dy = py - t * ey;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private double projectX(final double longitude) {
+        double delta = longitude - anchorLongitude;
+        // handle crossing the antimeridian
+        if (delta > 180) {
+            delta -= 360;
+        } else if (delta < -180) {
+            delta += 360;
+        }
+        return Math.toRadians(delta) * anchorCosLatitude * EARTH_RADIUS;
+    }
+
+    private double projectY(final double latitude) {
+        return Math.toRadians(latitude - anchorLatitude) * EARTH_RADIUS;
+    }
+}
@@ -46,7 +46,6 @@ import java.util.Date;
  * - toolbar in SettingsActivity
  * - support for encoded polyline?
  * - support for location updates via wifi?
- * - additional upload mechanisms (e.g. HTTP)
  * - setting for keeping the display on? (FLAG_KEEP_SCREEN_ON)
  * - avgSpeed: ignore idle times (easy) and tracking restarts (difficult, needs dummy location?)
  * - re-check activity lifecycle:
@@ -171,9 +170,10 @@ public class TrackingActivity extends AppCompatActivity {
                 updateStartStopActionLabel();
             }
 
-            if (intent.hasExtra(GPSReceiver.EXTRA_PARAM_LOCATION_LIST)) {
-                final MyLocationList locations = intent.getParcelableExtra(GPSReceiver.EXTRA_PARAM_LOCATION_LIST);
-                handleLocationChanged(locations);
+            if (intent.hasExtra(GPSReceiver.EXTRA_PARAM_STATISTICS)) {
+                final MyLocation location = intent.getParcelableExtra(GPSReceiver.EXTRA_PARAM_LOCATION);
+                final MyLocationList.Statistics stats = intent.getParcelableExtra(GPSReceiver.EXTRA_PARAM_STATISTICS);
+                handleLocationChanged(location, stats);
             } else if (intent.hasExtra(GPSReceiver.EXTRA_PARAM_GPS_PROVIDER)) {
                 showGPSProviderHint(intent.getExtras().getBoolean(GPSReceiver.EXTRA_PARAM_GPS_PROVIDER));
             }
@@ -241,18 +241,19 @@ public class TrackingActivity extends AppCompatActivity {
         GPSReceiver.startActionAddSingleLocation(this);
     }
 
-    /** Handle location updates */
-    private void handleLocationChanged(final MyLocationList locations) {
-        updateGeneralStatistics(locations);
-        updateBacklogStatistics(locations);
+    /**
+     * Handle location updates.
+     * Each broadcast contains everything we display, also after clearing all locations, i.e. the
+     * newest location (null if there is none) and statistics about all locations.
+     */
+    private void handleLocationChanged(final MyLocation curLocation, final MyLocationList.Statistics stats) {
+        updateGeneralStatistics(curLocation, stats);
+        updateBacklogStatistics(stats);
     }
 
     /** Update general location statistics such as lat/lon, current speed etc. */
     @SuppressLint({"DefaultLocale", "SimpleDateFormat"})
-    private void updateGeneralStatistics(final MyLocationList locations) {
-        final MyLocationList.Statistics stats = locations.getStatistics();
-        final MyLocation curLocation = locations.getLast();
-
+    private void updateGeneralStatistics(final MyLocation curLocation, final MyLocationList.Statistics stats) {
         // position
         TextView lat = (TextView)findViewById(R.id.Lat);
         lat.setText(curLocation == null ? getString(R.string.value_not_available_short) :
@@ -279,7 +280,7 @@ public class TrackingActivity extends AppCompatActivity {
         // distance to previous location
         TextView distance = (TextView)findViewById(R.id.distance);
         distance.setText(Helper.humanReadableDistance(this, stats.distanceLast, 1));
-        if (curLocation != null && locations.size() >= 2) {
+        if (curLocation != null && stats.numLocations >= 2) {
             distance.setText(Helper.humanReadableDistance(this, stats.distanceLast, 1));
         } else {
             distance.setText(getString(R.string.value_not_available_short));
@@ -293,13 +294,12 @@ public class TrackingActivity extends AppCompatActivity {
 
     /** Update backlog statistics such as number of locations, total distance etc. */
     @SuppressLint("DefaultLocale")
-    private void updateBacklogStatistics(final MyLocationList locations) {
-        final MyLocationList.Statistics stats = locations.getStatistics();
-        final boolean noBacklog = (locations.size() <= 1);
+    private void updateBacklogStatistics(final MyLocationList.Statistics stats) {
+        final boolean noBacklog = (stats.numLocations <= 1);
 
         // number of locations
         TextView numLocations = (TextView)findViewById(R.id.backlog_locations);
-        numLocations.setText(String.valueOf(locations.size()));
+        numLocations.setText(String.valueOf(stats.numLocations));
 
         // total distance
         TextView distance = (TextView)findViewById(R.id.backlog_distance);
@@ -0,0 +1,165 @@
+package cernunnos.trackme;
+
+import java.util.Random;
+
+/**
+ * Hands location lists from GPSReceiver to UploadService, coalescing upload requests.
+ *
+ * Only the newest location list is kept. While an upload is queued or in progress, further
+ * requests just replace the pending list instead of queueing another upload. Thus a slow server
+ * doesn't lead to a series of uploads of already outdated location lists.
+ *
+ * If an upload fails the list is kept and retried after an exponentially growing delay with random
+ * jitter (see retryLater()). Requests during this time just replace the pending list, so once the
+ * server is reachable again all new locations are uploaded at once. The pending list itself isn't
+ * persisted: all locations are contained in GPSReceiver's journal and UploadState tells which of
+ * them haven't been uploaded yet.
+ *
+ * Both services run inside the same process, so the list doesn't need to be parcelled.
+ */
+class UploadQueue {
+    // delay before the first retry, doubled for each further failure
+    private static final long RETRY_BASE_DELAY_MILLIS = 30 * 1000;
+    // maximum delay between retries
+    private static final long RETRY_MAX_DELAY_MILLIS = 30 * 60 * 1000;
+
+    // newest location list which hasn't been uploaded yet, null if none
+    private static MyLocationList pending;
+
+    // whether UploadService has been started and will take the pending list
+    private static boolean scheduled = false;
+
+    // retry state
+    // number of consecutive failed uploads
+    private static int failures = 0;
+    // time of the next retry (see System.currentTimeMillis()), 0 if none is scheduled
+    private static long retryMillis = 0;
+    // whether the retry state has been restored from storage after starting the process
+    private static boolean restored = false;
+    // randomizes retry delays so that several devices don't retry in lockstep
+    private static final Random random = new Random();
+
+    // metrics
+    // total number of retried uploads
+    private static long numRetries = 0;
+    // number of locations not uploaded yet
+    private static int pendingLocations = 0;
+    // time of the oldest location not uploaded yet, 0 if none
+    private static long oldestPendingTime = 0;
+
+    /**
+     * Sets the location list to upload next, replacing any pending one.
+     * The list must not be modified afterwards.
+     * Returns true if UploadService needs to be started, false if it will take the list anyway
+     * (either because it is already running or because a retry has been scheduled).
+     */
+    static synchronized boolean offer(final MyLocationList locations) {
+        pending = locations;
+        if (scheduled || isBackingOff()) {
+            return false;
+        }
+        scheduled = true;
+        return true;
+    }
+
+    /**
+     * Returns the pending location list and removes it from the queue.
+     * Returns null if there is none, further lists will require starting UploadService again.
+     */
+    static synchronized MyLocationList take() {
+        final MyLocationList locations = pending;
+        pending = null;
+        if (locations == null) {
+            scheduled = false;
+        }
+        return locations;
+    }
+
+    /**
+     * Schedules retrying the failed upload of the given list, unless a newer list is pending already.
+     * Returns the time of the retry, see System.currentTimeMillis().
+     */
+    static synchronized long retryLater(final MyLocationList locations) {
+        if (pending == null) {
+            pending = locations;
+        }
+        scheduled = false;
+        ++failures;
+        // equal jitter: at least half of the exponential delay, so delays keep growing
+        final long delay = Math.min(RETRY_BASE_DELAY_MILLIS << Math.min(failures - 1, 16), RETRY_MAX_DELAY_MILLIS);
+        retryMillis = System.currentTimeMillis() + delay / 2 + (long)(random.nextDouble() * (delay / 2));
+        return retryMillis;
+    }
+
+    /**
+     * Ends backing off, e.g. once the retry time has been reached or the network became available.
+     * Returns true if a list is pending and UploadService should take it now, false if the pending
+     * list got lost (e.g. after a restart of the process).
+     */
+    static synchronized boolean retryNow() {
+        retryMillis = 0;
+        if (pending == null) {
+            return false;
+        }
+        scheduled = true;
+        ++numRetries;
+        return true;
+    }
+
+    /** Resets the retry state after a successful upload */
+    static synchronized void succeeded() {
+        failures = 0;
+        retryMillis = 0;
+    }
+
+    /** Returns true if uploads are postponed until the retry time has been reached */
+    static synchronized boolean isBackingOff() {
+        return retryMillis > System.currentTimeMillis();
+    }
+
+    /**
+     * Restores the retry state after starting the process, ignored if already restored.
+     * Returns true if it has been restored, the retry needs to be scheduled again then.
+     */
+    static synchronized boolean restore(final int failures, final long numRetries, final long retryMillis) {
+        if (restored) {
+            return false;
+        }
+        restored = true;
+        UploadQueue.failures = failures;
+        UploadQueue.numRetries = numRetries;
+        UploadQueue.retryMillis = retryMillis;
+        return true;
+    }
+
+    /** Sets the metrics about locations which haven't been uploaded yet */
+    static synchronized void setPending(final int locations, final long oldestTime) {
+        pendingLocations = locations;
+        oldestPendingTime = oldestTime;
+    }
+
+    /** Returns the number of consecutive failed uploads */
+    static synchronized int getFailures() {
+        return failures;
+    }
+
+    /** Returns the time of the next retry (see System.currentTimeMillis()), 0 if none is scheduled */
+    static synchronized long getRetryMillis() {
+        return retryMillis;
+    }
+
+    /** Returns the total number of retried uploads */
+    static synchronized long getNumRetries() {
+        return numRetries;
+    }
+
+    /** Returns the number of locations which haven't been uploaded yet */
+    static synchronized int getPendingLocations() {
+        return pendingLocations;
+    }
+
+    /** Returns the age of the oldest location which hasn't been uploaded yet in milliseconds, 0 if none */
+    static synchronized long getOldestPendingAgeMillis() {
+        return oldestPendingTime == 0 ? 0 : System.currentTimeMillis() - oldestPendingTime;
+    }
+}
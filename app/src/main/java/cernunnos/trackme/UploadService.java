@@ -0,0 +1,336 @@
+package cernunnos.trackme;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Uploads locations to the server, either via FTP (see FTPUploader) or HTTP (see HttpUploader).
+ *
+ * The upload state describes the content of the server file, it allows to append only new
+ * locations instead of rewriting the whole file. It is kept across instances of this service.
+ *
+ * Failed uploads are retried with exponential backoff, see UploadQueue. The retry is triggered by an
+ * alarm or by GPSReceiver once the network is available again.
+ */
+public class UploadService extends IntentService {
+    // tag for logging
+    private static final String TAG = UploadService.class.getSimpleName();
+
+    // actions
+    // store (overwrite) a list of locations
+    protected static final String ACTION_STORE_LOCATION_LIST = "action.store_location_list";
+    // re-read settings
+    protected static final String ACTION_REREAD_SETTINGS = "action.reread_settings";
+    // retry a failed upload
+    protected static final String ACTION_RETRY_UPLOAD = "action.retry_upload";
+
+    // upload methods, see R.array.pref_upload_method_values
+    private static final String METHOD_FTP = "ftp";
+    private static final String METHOD_HTTP = "http";
+
+    // settings
+    protected String uploadMethod;
+    protected String userName;
+    protected String password;
+    protected String ftpServer;
+    protected int    ftpPort;
+    protected String ftpDir;
+    protected String ftpFilename;
+    protected String httpUrl;
+    protected LocationEncoder.Format uploadFormat;
+    protected boolean uploadCompressed;
+    protected long uploadIntervalSecs;
+    protected boolean settingsInitialized = false;
+
+    // FTP connection, kept alive across uploads and thus across instances of this service
+    private static final FTPSession ftpSession = new FTPSession();
+
+    // uploader for the configured method, null if the settings are invalid
+    private Uploader uploader;
+
+    // upload state, persisted on each change
+    private final UploadState uploadState = new UploadState(new UploadState.Storage() {
+        @Override
+        public void write(final UploadState state) {
+            writeUploadState(state);
+        }
+    });
+
+    public UploadService() {
+        super("UploadService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Log.v(TAG, "onHandleIntent()");
+        if (intent == null) {
+            Log.w(TAG, "onHandleIntent(): could not handle intent: null");
+            return;
+        }
+
+        final String action = intent.getAction();
+        if (action == null) {
+            Log.w(TAG, "onHandleIntent(): could not handle intent action: null");
+            return;
+        }
+
+        Log.v(TAG, "onHandleIntent(): action " + action);
+        switch (action) {
+            case ACTION_STORE_LOCATION_LIST: {
+                if (!settingsInitialized) {
+                    readSettings();
+                }
+                uploadPending();
+                break;
+            }
+            case ACTION_RETRY_UPLOAD:
+                if (!settingsInitialized) {
+                    readSettings();
+                }
+                final boolean hasPending = UploadQueue.retryNow();
+                writeRetryState();
+                if (!hasPending) {
+                    // the pending list got lost when the process was restarted. GPSReceiver restores
+                    // all locations from its journal and hands them over again.
+                    Log.v(TAG, "onHandleIntent(): no pending locations, requesting them");
+                    GPSReceiver.startActionUploadLocations(this);
+                    break;
+                }
+                uploadPending();
+                break;
+            case ACTION_REREAD_SETTINGS:
+                readSettings();
+                break;
+            default:
+                Log.e(TAG, "onHandleIntent(): invalid action: " + action);
+                break;
+        }
+    }
+
+    /** Initializes upload settings and creates the uploader */
+    protected void readSettings() {
+        Log.v(TAG, "readSettings()");
+        final SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+        uploadMethod = sharedPref.getString(getString(R.string.preference_upload_method),
+                getString(R.string.pref_upload_default_method));
+        userName = sharedPref.getString(getString(R.string.preference_ftp_user_name), "");
+        password = sharedPref.getString(getString(R.string.preference_ftp_password), "");
+        ftpServer = sharedPref.getString(getString(R.string.preference_ftp_server), "");
+        ftpPort = Integer.parseInt(sharedPref.getString(getString(R.string.preference_ftp_port), "21"));
+        ftpDir = sharedPref.getString(getString(R.string.preference_ftp_dir),
+                getString(R.string.pref_upload_default_ftp_filename));
+        ftpFilename = sharedPref.getString(getString(R.string.preference_ftp_filename),
+                getString(R.string.pref_upload_default_ftp_filename));
+        httpUrl = sharedPref.getString(getString(R.string.preference_http_url),
+                getString(R.string.pref_upload_default_http_url));
+        uploadFormat = LocationEncoder.Format.fromPreference(sharedPref.getString(getString(R.string.preference_upload_format),
+                getString(R.string.pref_upload_default_format)));
+        uploadCompressed = sharedPref.getBoolean(getString(R.string.preference_upload_compressed), false);
+        uploadIntervalSecs = Long.parseLong(sharedPref.getString(getString(R.string.preference_uploading_interval),
+                getString(R.string.pref_upload_default_interval)));
+
+        Log.v(TAG, "readSettings(): method: " + uploadMethod + ", user: " + userName + ", server: " + ftpServer +
+                ", port: " + ftpPort + ", dir: " + ftpDir + ", file name: " + ftpFilename + ", URL: " + httpUrl +
+                ", format: " + uploadFormat + ", compressed: " + uploadCompressed + ", interval: " + uploadIntervalSecs + "s");
+
+        settingsInitialized = true;
+
+        final Uploader prevUploader = uploader;
+        uploader = createUploader();
+        if (prevUploader != null && (uploader == null || !prevUploader.getTarget().equals(uploader.getTarget()))) {
+            prevUploader.close();
+        }
+        readUploadState();
+        restoreRetryState(this);
+    }
+
+    /** Creates the uploader for the configured upload method, returns null if the settings are invalid */
+    protected Uploader createUploader() {
+        if (METHOD_HTTP.equals(uploadMethod)) {
+            try {
+                return new HttpUploader(new URL(httpUrl), userName, password, uploadFormat, uploadCompressed);
+            } catch (MalformedURLException e) {
+                Log.e(TAG, "createUploader(): invalid URL " + httpUrl + ": " + e.getMessage());
+                return null;
+            }
+        }
+        if (!METHOD_FTP.equals(uploadMethod)) {
+            Log.w(TAG, "createUploader(): unknown upload method " + uploadMethod + ", using FTP");
+        }
+        return new FTPUploader(ftpSession, ftpServer, ftpPort, userName, password, ftpDir, ftpFilename,
+                uploadFormat, uploadCompressed, uploadIntervalSecs);
+    }
+
+    /** Reads the upload state. Resets it if the upload target has changed in the meantime. */
+    protected void readUploadState() {
+        final SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+        uploadState.reset();
+        if (uploader == null ||
+                !uploader.getTarget().equals(sharedPref.getString(getString(R.string.preference_upload_target), ""))) {
+            Log.v(TAG, "readUploadState(): upload target changed, next upload will rewrite the whole file");
+            return;
+        }
+        uploadState.locations = sharedPref.getInt(getString(R.string.preference_uploaded_locations), -1);
+        uploadState.firstTime = sharedPref.getLong(getString(R.string.preference_uploaded_first_time), 0);
+        uploadState.lastTime = sharedPref.getLong(getString(R.string.preference_uploaded_last_time), 0);
+        uploadState.bytes = sharedPref.getLong(getString(R.string.preference_uploaded_bytes), -1);
+        uploadState.etag = sharedPref.getString(getString(R.string.preference_uploaded_etag), null);
+    }
+
+    /** Writes the given upload state */
+    protected void writeUploadState(final UploadState state) {
+        final SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+        sharedPref.edit()
+                .putString(getString(R.string.preference_upload_target), uploader.getTarget())
+                .putInt(getString(R.string.preference_uploaded_locations), state.locations)
+                .putLong(getString(R.string.preference_uploaded_first_time), state.firstTime)
+                .putLong(getString(R.string.preference_uploaded_last_time), state.lastTime)
+                .putLong(getString(R.string.preference_uploaded_bytes), state.bytes)
+                .putString(getString(R.string.preference_uploaded_etag), state.etag)
+                .apply();
+    }
+
+    /** Writes the retry state */
+    protected void writeRetryState() {
+        final SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+        sharedPref.edit()
+                .putInt(getString(R.string.preference_upload_failures), UploadQueue.getFailures())
+                .putLong(getString(R.string.preference_upload_retries), UploadQueue.getNumRetries())
+                .putLong(getString(R.string.preference_upload_retry_time), UploadQueue.getRetryMillis())
+                .apply();
+    }
+
+    /**
+     * Restores the retry state after starting the process and schedules the pending retry again,
+     * its alarm doesn't survive a reboot. Does nothing if already restored.
+     */
+    protected static void restoreRetryState(final Context context) {
+        final SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
+        final long retryMillis = sharedPref.getLong(context.getString(R.string.preference_upload_retry_time), 0);
+        final boolean restored = UploadQueue.restore(
+                sharedPref.getInt(context.getString(R.string.preference_upload_failures), 0),
+                sharedPref.getLong(context.getString(R.string.preference_upload_retries), 0), retryMillis);
+        if (restored && retryMillis > 0) {
+            // fires immediately if the retry time has passed already
+            getAlarmManager(context).set(AlarmManager.RTC, retryMillis, getRetryIntent(context));
+            Log.i(TAG, "restoreRetryState(): retrying in " +
+                    Math.max(retryMillis - System.currentTimeMillis(), 0) / 1000 + "s");
+        }
+    }
+
+    /**
+     * Uploads the newest location list until there is none left. Lists which have been replaced by
+     * newer ones in the meantime are skipped. Schedules a retry if an upload fails.
+     */
+    protected void uploadPending() {
+        MyLocationList locations;
+        while ((locations = UploadQueue.take()) != null) {
+            if (!upload(locations)) {
+                scheduleRetry(locations);
+                return;
+            }
+        }
+    }
+
+    /** Uploads the given locations, returns false if the upload failed and should be retried */
+    protected boolean upload(final MyLocationList locations) {
+        if (uploader == null) {
+            // retrying won't help, the next change of settings will trigger an upload
+            Log.e(TAG, "upload(): invalid upload settings, not uploading");
+            return true;
+        }
+        boolean success = false;
+        try {
+            uploader.upload(locations, uploadState);
+            success = true;
+        } catch (IOException e) {
+            Log.e(TAG, "upload(): upload to " + uploader.getTarget() + " failed: " + e.getMessage());
+        }
+        updateMetrics(locations);
+        if (success && UploadQueue.getFailures() > 0) {
+            UploadQueue.succeeded();
+            writeRetryState();
+            getAlarmManager(this).cancel(getRetryIntent(this));
+        }
+        return success;
+    }
+
+    /** Schedules retrying the failed upload of the given locations */
+    protected void scheduleRetry(final MyLocationList locations) {
+        final long retryMillis = UploadQueue.retryLater(locations);
+        writeRetryState();
+        getAlarmManager(this).set(AlarmManager.RTC, retryMillis, getRetryIntent(this));
+        Log.i(TAG, "scheduleRetry(): " + UploadQueue.getFailures() + " failed uploads, retrying in " +
+                (retryMillis - System.currentTimeMillis()) / 1000 + "s");
+    }
+
+    /** Updates and logs metrics about locations which haven't been uploaded yet */
+    protected void updateMetrics(final MyLocationList locations) {
+        final int uploaded = Math.max(uploadState.alreadyUploaded(locations), 0);
+        final int pending = locations.size() - uploaded;
+        UploadQueue.setPending(pending, pending > 0 ? locations.get(uploaded, new MyLocation()).time : 0);
+        Log.v(TAG, "updateMetrics(): " + pending + " locations pending, oldest one " +
+                UploadQueue.getOldestPendingAgeMillis() / 1000 + "s old, " + UploadQueue.getNumRetries() + " retries");
+    }
+
+    protected static AlarmManager getAlarmManager(final Context context) {
+        return (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+    }
+
+    /** Returns the intent for retrying a failed upload */
+    protected static PendingIntent getRetryIntent(final Context context) {
+        final Intent intent = new Intent(context, UploadService.class);
+        intent.setAction(ACTION_RETRY_UPLOAD);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Starts this service to store a list of locations on the server.
+     * If an upload is already queued or in progress then the given list replaces the pending one
+     * and will be uploaded afterwards. The list must not be modified afterwards.
+     */
+    public static void startActionStoreLocationList(final Context context, final MyLocationList locations) {
+        if (!UploadQueue.offer(locations)) {
+            Log.v(TAG, "startActionStoreLocationList(): upload already pending, replaced its locations");
+            return;
+        }
+        Intent intent = new Intent(context, UploadService.class);
+        intent.setAction(ACTION_STORE_LOCATION_LIST);
+        context.startService(intent);
+    }
+
+    /**
+     * Retries a failed upload immediately, e.g. once the network is available again.
+     * Does nothing unless a retry has been scheduled.
+     */
+    public static void startActionRetryUpload(final Context context) {
+        restoreRetryState(context);
+        if (!UploadQueue.isBackingOff()) {
+            return;
+        }
+        Log.v(TAG, "startActionRetryUpload()");
+        Intent intent = new Intent(context, UploadService.class);
+        intent.setAction(ACTION_RETRY_UPLOAD);
+        context.startService(intent);
+    }
+
+    /**
+     * Re-reads settings.
+     * Required if upload settings change after UploadService has been started.
+     */
+    public static void startActionReReadSettings(final Context context) {
+        Intent intent = new Intent(context, UploadService.class);
+        intent.setAction(ACTION_REREAD_SETTINGS);
+        context.startService(intent);
+    }
+}
@@ -0,0 +1,98 @@
+package cernunnos.trackme;
+
+/**
+ * Describes the content of the server file after the last successful upload.
+ *
+ * Allows uploaders to append only new locations instead of rewriting the whole file. If the first
+ * location of our list differs from the first uploaded one (locations have been cleared or dropped)
+ * or if the state is unknown the whole file needs to be rewritten.
+ */
+class UploadState {
+    /** Persists the upload state */
+    interface Storage {
+        void write(UploadState state);
+    }
+
+    // number of uploaded locations, -1 if unknown
+    int locations = -1;
+    // time of the first and last uploaded location
+    long firstTime = 0;
+    long lastTime = 0;
+    // size of the server file in bytes (uncompressed unless stored compressed), -1 if unknown
+    long bytes = -1;
+    // entity tag of the server file (HTTP only), null if unknown
+    String etag = null;
+
+    // persists all changes, might be null
+    private final Storage storage;
+
+    /** Creates a new unknown state, changes are persisted to the given storage if not null */
+    UploadState(final Storage storage) {
+        this.storage = storage;
+    }
+
+    /** Forgets about the server file content without persisting it */
+    void reset() {
+        locations = -1;
+        firstTime = 0;
+        lastTime = 0;
+        bytes = -1;
+        etag = null;
+    }
+
+    /**
+     * Forgets about the server file content, the next upload will rewrite it completely.
+     * Should be called before modifying the server file in case the modification doesn't complete.
+     */
+    void invalidate() {
+        reset();
+        write();
+    }
+
+    /** Records a successful upload resulting in a server file with the given locations, size and entity tag */
+    void update(final MyLocationList locations, final long bytes, final String etag) {
+        final MyLocation location = new MyLocation();
+        this.locations = locations.size();
+        firstTime = locations.size() > 0 ? locations.get(0, location).time : 0;
+        lastTime = locations.size() > 0 ? locations.get(locations.size() - 1, location).time : 0;
+        this.bytes = bytes;
+        this.etag = etag;
+        write();
+    }
+
+    /**
+     * Returns the number of locations which are already contained in the server file,
+     * i.e. the index of the first location to append. Returns -1 if the server file doesn't
+     * match the beginning of our location list (locations have been cleared or dropped) and
+     * needs to be rewritten completely.
+     *
+     * If the last uploaded location has been replaced by a newer one (see TrackSimplifier) then
+     * the replacement gets appended. The server file keeps the replaced location, which doesn't
+     * hurt since it has been a recorded location close to the track.
+     */
+    int alreadyUploaded(final MyLocationList list) {
+        if (locations < 0 || locations > list.size()) {
+            return -1;
+        }
+        if (locations == 0) {
+            return 0;
+        }
+        final MyLocation location = new MyLocation();
+        if (list.get(0, location).time != firstTime) {
+            return -1;
+        }
+        final long time = list.get(locations - 1, location).time;
+        if (time == lastTime) {
+            return locations;
+        } else if (time > lastTime && locations > 1) {
+            return locations - 1;
+        }
+        return -1;
+    }
+
+    private void write() {
+        if (storage != null) {
+            storage.write(this);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package cernunnos.trackme;
+
+import java.io.IOException;
+
+/** Uploads location lists to a server, see UploadService */
+interface Uploader {
+    /**
+     * Returns a string describing the server file and everything which affects its content.
+     * The upload state is only valid as long as the target doesn't change.
+     */
+    String getTarget();
+
+    /**
+     * Uploads the given locations. Only appends new locations if the server file still matches the
+     * given upload state, otherwise rewrites the whole file. Updates the upload state.
+     */
+    void upload(MyLocationList locations, UploadState state) throws IOException;
+
+    /** Closes connections kept open for further uploads */
+    void close();
+}
@@ -0,0 +1,259 @@
+package cernunnos.trackme;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/** Tests HttpUploader against a local HTTP server implementing the append protocol */
+public class HttpUploaderTest {
+    /** Stores a single file, see HttpUploader for a description of the protocol */
+    private static class FileHandler implements HttpHandler {
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        // incremented on each modification, used as entity tag
+        int version = 0;
+        // respond with this code instead of handling the request if not 0
+        int errorCode = 0;
+
+        // received requests
+        final List<String> methods = new ArrayList<>();
+        final Set<Integer> clientPorts = new HashSet<>();
+        boolean receivedCompressed = false;
+        // Authorization header of each request, null if missing
+        final List<String> authorizations = new ArrayList<>();
+
+        String etag() {
+            return "\"" + version + "\"";
+        }
+
+        @Override
+        public synchronized void handle(final HttpExchange exchange) throws IOException {
+            final String method = exchange.getRequestMethod();
+            methods.add(method);
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+
+            InputStream in = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                receivedCompressed = true;
+                in = new GZIPInputStream(in);
+            }
+            final byte[] body = readAll(in);
+
+            int code = 200;
+            if (errorCode != 0) {
+                code = errorCode;
+            } else if (method.equals("PUT")) {
+                file.reset();
+                file.write(body);
+                ++version;
+            } else if (method.equals("POST")) {
+                if (etag().equals(exchange.getRequestHeaders().getFirst("If-Match"))) {
+                    file.write(body);
+                    ++version;
+                } else {
+                    code = 412;
+                }
+            } else {
+                code = 405;
+            }
+            exchange.getResponseHeaders().set("ETag", etag());
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        }
+    }
+
+    private HttpServer server;
+    private FileHandler handler;
+    private URL url;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        handler = new FileHandler();
+        server.createContext("/locations.txt", handler);
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/locations.txt");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void appendsNewLocations() throws IOException {
+        final HttpUploader uploader = new HttpUploader(url, "", "", LocationEncoder.Format.TEXT, false);
+        final UploadState state = new UploadState(null);
+        final MyLocationList locations = track(100);
+        uploader.upload(locations, state);
+        addLocations(locations, 50);
+        uploader.upload(locations, state);
+
+        assertEquals(Arrays.asList("PUT", "POST"), handler.methods);
+        assertArrayEquals(encode(locations, LocationEncoder.Format.TEXT, 0), handler.file.toByteArray());
+        assertEquals(150, state.locations);
+        assertEquals(handler.etag(), state.etag);
+    }
+
+    @Test
+    public void skipsUploadWithoutNewLocations() throws IOException {
+        final HttpUploader uploader = new HttpUploader(url, "", "", LocationEncoder.Format.TEXT, false);
+        final UploadState state = new UploadState(null);
+        final MyLocationList locations = track(10);
+        uploader.upload(locations, state);
+        uploader.upload(locations, state);
+
+        assertEquals(Arrays.asList("PUT"), handler.methods);
+    }
+
+    @Test
+    public void rewritesModifiedFile() throws IOException {
+        final HttpUploader uploader = new HttpUploader(url, "", "", LocationEncoder.Format.TEXT, false);
+        final UploadState state = new UploadState(null);
+        final MyLocationList locations = track(100);
+        uploader.upload(locations, state);
+        // modified by someone else
+        ++handler.version;
+        addLocations(locations, 10);
+        uploader.upload(locations, state);
+
+        assertEquals(Arrays.asList("PUT", "POST", "PUT"), handler.methods);
+        assertArrayEquals(encode(locations, LocationEncoder.Format.TEXT, 0), handler.file.toByteArray());
+    }
+
+    @Test
+    public void rewritesAfterDroppingLocations() throws IOException {
+        final HttpUploader uploader = new HttpUploader(url, "", "", LocationEncoder.Format.TEXT, false);
+        final UploadState state = new UploadState(null);
+        final MyLocationList locations = track(100);
+        uploader.upload(locations, state);
+        locations.removeFirst();
+        addLocations(locations, 1);
+        uploader.upload(locations, state);
+
+        assertEquals(Arrays.asList("PUT", "PUT"), handler.methods);
+        assertArrayEquals(encode(locations, LocationEncoder.Format.TEXT, 0), handler.file.toByteArray());
+    }
+
+    @Test
+    public void compressesRequests() throws IOException {
+        final HttpUploader uploader = new HttpUploader(url, "", "", LocationEncoder.Format.BINARY, true);
+        final UploadState state = new UploadState(null);
+        final MyLocationList locations = track(1000);
+        uploader.upload(locations, state);
+        final byte[] expected1 = encode(locations, LocationEncoder.Format.BINARY, 0);
+        addLocations(locations, 10);
+        uploader.upload(locations, state);
+        final byte[] expected2 = encode(locations, LocationEncoder.Format.BINARY, 1000);
+
+        assertTrue(handler.receivedCompressed);
+        final byte[] expected = Arrays.copyOf(expected1, expected1.length + expected2.length);
+        System.arraycopy(expected2, 0, expected, expected1.length, expected2.length);
+        assertArrayEquals(expected, handler.file.toByteArray());
+    }
+
+    @Test
+    public void reusesConnection() throws IOException {
+        final HttpUploader uploader = new HttpUploader(url, "", "", LocationEncoder.Format.TEXT, false);
+        final UploadState state = new UploadState(null);
+        final MyLocationList locations = track(10);
+        for (int i = 0; i < 5; ++i) {
+            addLocations(locations, 1);
+            uploader.upload(locations, state);
+        }
+
+        assertEquals(5, handler.methods.size());
+        assertEquals(1, handler.clientPorts.size());
+    }
+
+    @Test
+    public void sendsCredentials() throws IOException {
+        final HttpUploader uploader = new HttpUploader(url, "tracker", "p@ss:w\u00f6rd!", LocationEncoder.Format.TEXT, false);
+        final UploadState state = new UploadState(null);
+        final MyLocationList locations = track(10);
+        uploader.upload(locations, state);
+        addLocations(locations, 1);
+        uploader.upload(locations, state);
+
+        // Base64 of the UTF-8 encoded "tracker:p@ss:w\u00f6rd!"
+        final String expected = "Basic dHJhY2tlcjpwQHNzOnfDtnJkIQ==";
+        assertEquals(Arrays.asList(expected, expected), handler.authorizations);
+    }
+
+    @Test
+    public void omitsCredentialsWithoutUserName() throws IOException {
+        final HttpUploader uploader = new HttpUploader(url, "", "", LocationEncoder.Format.TEXT, false);
+        uploader.upload(track(10), new UploadState(null));
+
+        assertEquals(Arrays.asList((String)null), handler.authorizations);
+    }
+
+    @Test
+    public void failsOnServerError() throws IOException {
+        final HttpUploader uploader = new HttpUploader(url, "", "", LocationEncoder.Format.TEXT, false);
+        final UploadState state = new UploadState(null);
+        final MyLocationList locations = track(10);
+        uploader.upload(locations, state);
+        handler.errorCode = 500;
+        addLocations(locations, 1);
+        try {
+            uploader.upload(locations, state);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        // next upload has to rewrite the whole file
+        assertEquals(-1, state.locations);
+    }
+
+    /** Returns a list containing the given number of locations */
+    private static MyLocationList track(final int size) {
+        final MyLocationList locations = new MyLocationList();
+        addLocations(locations, size);
+        return locations;
+    }
+
+    /** Adds the given number of locations, continuing the track */
+    private static void addLocations(final MyLocationList locations, final int count) {
+        for (int i = 0; i < count; ++i) {
+            final int n = locations.size() == 0 ? 0 : (int)((locations.getLast().time - 1500000000000L) / 1000) + 1;
+            locations.addLast(new MyLocation(51.05 + n * 0.0001, 13.74 + Math.sin(n) * 0.001,
+                    1500000000000L + n * 1000L, true, 5.0f, true, 10.0f));
+        }
+    }
+
+    private static byte[] encode(final MyLocationList locations, final LocationEncoder.Format format,
+                                 final int firstIndex) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new LocationEncoder(format).write(locations, firstIndex, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
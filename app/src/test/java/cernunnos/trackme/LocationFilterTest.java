@@ -0,0 +1,123 @@
+package cernunnos.trackme;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/** Tests smoothing and outlier rejection of LocationFilter on synthetic tracks */
+public class LocationFilterTest {
+    // meters per degree of latitude
+    private static final double METERS_PER_DEGREE = 111195.0;
+    private static final double LATITUDE = 51.05;
+    private static final double LONGITUDE = 13.74;
+    private static final long START_TIME = 1500000000000L;
+    // standard deviation of the noise in meters, reported as accuracy
+    private static final float NOISE = 10.0f;
+    private static final double SPEED = 10.0;
+
+    @Test
+    public void smoothsNoisyTrackAndRejectsOutliers() {
+        final Random random = new Random(1);
+        final LocationFilter filter = new LocationFilter();
+        double rawSquaredError = 0;
+        double filteredSquaredError = 0;
+        int numCompared = 0;
+        int numRejected = 0;
+        float accuracy = 0;
+        for (int i = 0; i < 600; ++i) {
+            // straight east at constant speed, each 50th location is off by 300 m
+            final double east = i * SPEED;
+            final boolean outlier = i % 50 == 25;
+            final double errorNorth = outlier ? 300 : random.nextGaussian() * NOISE;
+            final double errorEast = random.nextGaussian() * NOISE;
+            final MyLocation location = location(errorNorth, east + errorEast, i);
+
+            final boolean accepted = filter.filter(location);
+            if (outlier) {
+                assertFalse("outlier " + i + " accepted", accepted);
+                continue;
+            }
+            if (!accepted) {
+                ++numRejected;
+                continue;
+            }
+            if (i >= 20) {
+                rawSquaredError += errorNorth * errorNorth + errorEast * errorEast;
+                filteredSquaredError += squaredError(location, 0, east);
+                ++numCompared;
+                // the estimated accuracy is better than the measurements' once the filter has settled
+                assertTrue("accuracy " + location.accuracy, location.accuracy < NOISE);
+                accuracy = location.accuracy;
+            }
+        }
+        assertTrue("accuracy " + accuracy, accuracy < NOISE * 0.65);
+        assertTrue("rejected " + numRejected, numRejected <= 3);
+        assertEquals((numRejected + 12) / 600.0, filter.getRejectedRatio(), 1e-9);
+        final double rawRms = Math.sqrt(rawSquaredError / numCompared);
+        final double filteredRms = Math.sqrt(filteredSquaredError / numCompared);
+        assertTrue("raw " + rawRms + "m, filtered " + filteredRms + "m", filteredRms < rawRms * 0.6);
+    }
+
+    @Test
+    public void followsRealJump() {
+        final LocationFilter filter = new LocationFilter();
+        for (int i = 0; i < 30; ++i) {
+            assertTrue(filter.filter(location(0, i * SPEED, i)));
+        }
+        // e.g. the first fix after leaving a tunnel: consecutive rejections restart the filter
+        int i = 30;
+        while (!filter.filter(location(2000, i * SPEED, i))) {
+            ++i;
+        }
+        assertEquals(33, i);
+        final MyLocation location = location(2000, (i + 1) * SPEED, i + 1);
+        assertTrue(filter.filter(location));
+        assertEquals(0, squaredError(location, 2000, (i + 1) * SPEED), 25 * 25);
+    }
+
+    @Test
+    public void restartsAfterGap() {
+        final LocationFilter filter = new LocationFilter();
+        for (int i = 0; i < 30; ++i) {
+            filter.filter(location(0, i * SPEED, i));
+        }
+        // GPS has been suspended for 10 minutes
+        final MyLocation location = location(3000, 0, 630);
+        assertTrue(filter.filter(location));
+        assertEquals(0, squaredError(location, 3000, 0), 1e-6);
+        assertEquals(NOISE, location.accuracy, 1e-3);
+    }
+
+    @Test
+    public void crossesAntimeridian() {
+        final LocationFilter filter = new LocationFilter();
+        for (int i = 0; i < 60; ++i) {
+            final double longitude = 179.99 + i * 0.001;
+            final MyLocation location = new MyLocation(0.0, longitude > 180 ? longitude - 360 : longitude,
+                    START_TIME + i * 10000L, false, 0.0f, true, NOISE);
+            assertTrue("location " + i, filter.filter(location));
+            assertTrue(location.longitude >= -180 && location.longitude <= 180);
+            final double expected = longitude > 180 ? longitude - 360 : longitude;
+            double difference = Math.abs(location.longitude - expected);
+            difference = Math.min(difference, 360 - difference);
+            assertEquals(0, difference * METERS_PER_DEGREE, NOISE);
+        }
+    }
+
+    /** Returns a location the given meters north and east of the start at the given seconds */
+    private static MyLocation location(final double north, final double east, final long seconds) {
+        final double latitude = LATITUDE + north / METERS_PER_DEGREE;
+        final double longitude = LONGITUDE + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+        return new MyLocation(latitude, longitude, START_TIME + seconds * 1000, false, 0.0f, true, NOISE);
+    }
+
+    /** Returns the squared distance in meters of the location from the given meters north and east of the start */
+    private static double squaredError(final MyLocation location, final double north, final double east) {
+        final double errorNorth = (location.latitude - LATITUDE) * METERS_PER_DEGREE - north;
+        final double errorEast = (location.longitude - LONGITUDE) * METERS_PER_DEGREE *
+                Math.cos(Math.toRadians(LATITUDE)) - east;
+        return errorNorth * errorNorth + errorEast * errorEast;
+    }
+}
@@ -0,0 +1,322 @@
+package cernunnos.trackme;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/** Tests writing the location journal and restoring locations from it */
+public class LocationJournalTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "journal");
+    }
+
+    @Test
+    public void replaysAllModifications() throws IOException {
+        final LocationJournal journal = new LocationJournal(file);
+        final MyLocationList expected = new MyLocationList();
+        for (int i = 0; i < 100; ++i) {
+            append(journal, expected, location(i));
+        }
+        journal.commit();
+        final MyLocation replacement = location(1000);
+        journal.replaceLast(replacement);
+        expected.replaceLast(replacement);
+        for (int i = 0; i < 10; ++i) {
+            journal.removeFirst();
+            expected.removeFirst();
+        }
+        journal.commit();
+        append(journal, expected, location(1001));
+        journal.commit();
+
+        assertLocations(expected, new LocationJournal(file).replay());
+    }
+
+    @Test
+    public void dropsUncommittedRecords() throws IOException {
+        final LocationJournal journal = new LocationJournal(file);
+        final MyLocationList expected = new MyLocationList();
+        append(journal, expected, location(0));
+        journal.commit();
+        journal.append(location(1));
+
+        assertLocations(expected, new LocationJournal(file).replay());
+    }
+
+    @Test
+    public void dropsTornGroup() throws IOException {
+        final LocationJournal journal = new LocationJournal(file);
+        final MyLocationList expected = new MyLocationList();
+        for (int i = 0; i < 10; ++i) {
+            append(journal, expected, location(i));
+        }
+        journal.commit();
+        for (int i = 10; i < 20; ++i) {
+            journal.append(location(i));
+        }
+        journal.commit();
+        // killed while writing the last record
+        truncate(file.length() - 7);
+
+        final LocationJournal restored = new LocationJournal(file);
+        assertLocations(expected, restored.replay());
+
+        // the torn group has been removed, so new groups aren't hidden behind it
+        append(restored, expected, location(20));
+        restored.commit();
+        assertLocations(expected, new LocationJournal(file).replay());
+    }
+
+    @Test
+    public void retriesFailedFirstCommit() throws IOException {
+        final FailingJournal journal = new FailingJournal(file);
+        final MyLocationList expected = new MyLocationList();
+        for (int i = 0; i < 10; ++i) {
+            append(journal, expected, location(i));
+        }
+        journal.failAfterBytes = 100;
+        try {
+            journal.commit();
+            fail("commit succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, file.length());
+        assertEquals(10, journal.getNumPending());
+
+        journal.failAfterBytes = -1;
+        journal.commit();
+        assertEquals(0, journal.getNumPending());
+        assertLocations(expected, new LocationJournal(file).replay());
+    }
+
+    @Test
+    public void retriesFailedCommit() throws IOException {
+        final FailingJournal journal = new FailingJournal(file);
+        final MyLocationList expected = new MyLocationList();
+        append(journal, expected, location(0));
+        journal.commit();
+        final long length = file.length();
+
+        for (int i = 1; i < 2000; ++i) {
+            append(journal, expected, location(i));
+        }
+        // fails within the second group
+        journal.failAfterBytes = 1500 * LocationJournal.RECORD_SIZE;
+        try {
+            journal.commit();
+            fail("commit succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(length, file.length());
+
+        journal.failAfterBytes = -1;
+        append(journal, expected, location(2000));
+        journal.commit();
+        assertLocations(expected, new LocationJournal(file).replay());
+    }
+
+    @Test
+    public void dropsGroupWithInvalidChecksum() throws IOException {
+        final LocationJournal journal = new LocationJournal(file);
+        final MyLocationList expected = new MyLocationList();
+        append(journal, expected, location(0));
+        journal.commit();
+        final long corruptedOffset = file.length() + 2 * LocationJournal.RECORD_SIZE + 3;
+        for (int i = 1; i < 5; ++i) {
+            journal.append(location(i));
+        }
+        journal.commit();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(corruptedOffset);
+            raf.write(raf.read() ^ 0x01);
+        } finally {
+            raf.close();
+        }
+
+        assertLocations(expected, new LocationJournal(file).replay());
+    }
+
+    @Test
+    public void readsUngroupedVersion() throws IOException {
+        final MyLocationList expected = new MyLocationList();
+        final ByteBuffer buffer = ByteBuffer.allocate(8 + 4 * LocationJournal.RECORD_SIZE);
+        buffer.putInt(0x544d4a4c).putInt(1);
+        for (int i = 0; i < 3; ++i) {
+            putRecord(buffer, 'A', location(i));
+            expected.addLast(location(i));
+        }
+        putRecord(buffer, 'L', location(5));
+        expected.replaceLast(location(5));
+        write(buffer.array());
+
+        final LocationJournal journal = new LocationJournal(file);
+        assertLocations(expected, journal.replay());
+
+        // the journal has been rewritten, so groups can be appended
+        append(journal, expected, location(6));
+        journal.commit();
+        assertLocations(expected, new LocationJournal(file).replay());
+    }
+
+    @Test
+    public void compactsToCurrentLocations() throws IOException {
+        final LocationJournal journal = new LocationJournal(file);
+        final MyLocationList expected = new MyLocationList();
+        for (int i = 0; i < 5000; ++i) {
+            append(journal, expected, location(i));
+            journal.removeFirst();
+            expected.removeFirst();
+        }
+        for (int i = 0; i < 10; ++i) {
+            append(journal, expected, location(i));
+        }
+        journal.commit();
+        assertTrue(journal.needsCompaction());
+        final long length = file.length();
+
+        journal.compact(expected);
+        assertFalse(journal.needsCompaction());
+        assertTrue(file.length() < length / 100);
+        assertLocations(expected, new LocationJournal(file).replay());
+
+        // records after compaction are appended to the new file
+        append(journal, expected, location(10));
+        journal.commit();
+        assertLocations(expected, new LocationJournal(file).replay());
+    }
+
+    @Test
+    public void clearRemovesAllLocations() throws IOException {
+        final LocationJournal journal = new LocationJournal(file);
+        journal.append(location(0));
+        journal.commit();
+        journal.clear();
+        final MyLocationList expected = new MyLocationList();
+        append(journal, expected, location(1));
+        journal.commit();
+
+        assertLocations(expected, new LocationJournal(file).replay());
+    }
+
+    @Test
+    public void replaysMissingFileAsEmpty() throws IOException {
+        final LocationJournal journal = new LocationJournal(file);
+        assertFalse(journal.exists());
+        assertEquals(0, journal.replay().size());
+    }
+
+    /** Returns a location which differs in all its values from those with another index */
+    static MyLocation location(final int i) {
+        return new MyLocation(51.05 + i * 1e-4, 13.74 - i * 1e-4, 1500000000000L + i * 1000L,
+                i % 2 == 0, i * 0.5f, i % 3 != 0, 3.0f + i);
+    }
+
+    /** Asserts that both lists contain the same locations */
+    static void assertLocations(final MyLocationList expected, final MyLocationList actual) {
+        assertEquals(expected.size(), actual.size());
+        final MyLocation e = new MyLocation();
+        final MyLocation a = new MyLocation();
+        for (int i = 0; i < expected.size(); ++i) {
+            assertLocation(expected.get(i, e), actual.get(i, a));
+        }
+    }
+
+    /** Asserts that both locations are equal */
+    static void assertLocation(final MyLocation expected, final MyLocation actual) {
+        assertEquals(expected.latitude, actual.latitude, 0);
+        assertEquals(expected.longitude, actual.longitude, 0);
+        assertEquals(expected.time, actual.time);
+        assertEquals(expected.hasSpeed, actual.hasSpeed);
+        assertEquals(expected.speed, actual.speed, 0);
+        assertEquals(expected.hasAccuracy, actual.hasAccuracy);
+        assertEquals(expected.accuracy, actual.accuracy, 0);
+    }
+
+    /** Journal whose file fails writing after the given number of bytes, unless it is negative */
+    private static final class FailingJournal extends LocationJournal {
+        private final File file;
+        int failAfterBytes = -1;
+
+        FailingJournal(final File file) {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        FileOutputStream openForAppending() throws IOException {
+            final int failAfterBytes = this.failAfterBytes;
+            return new FileOutputStream(file, true) {
+                private int numWritten = 0;
+
+                @Override
+                public void write(final byte[] b) throws IOException {
+                    write(b, 0, b.length);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    if (failAfterBytes >= 0 && numWritten + len > failAfterBytes) {
+                        // write the part which fits, like a full disk
+                        super.write(b, off, failAfterBytes - numWritten);
+                        numWritten = failAfterBytes;
+                        throw new IOException("no space left on device");
+                    }
+                    super.write(b, off, len);
+                    numWritten += len;
+                }
+            };
+        }
+    }
+
+    private static void append(final LocationJournal journal, final MyLocationList locations, final MyLocation location) {
+        journal.append(location);
+        locations.addLast(location);
+    }
+
+    /** Puts a record in the layout of LocationJournal */
+    private static void putRecord(final ByteBuffer buffer, final char type, final MyLocation location) {
+        buffer.put((byte)type);
+        buffer.putDouble(location.latitude);
+        buffer.putDouble(location.longitude);
+        buffer.putLong(location.time);
+        buffer.putFloat(location.speed);
+        buffer.putFloat(location.accuracy);
+        buffer.put((byte)((location.hasSpeed ? 0x01 : 0) | (location.hasAccuracy ? 0x02 : 0)));
+    }
+
+    private void write(final byte[] content) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void truncate(final long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
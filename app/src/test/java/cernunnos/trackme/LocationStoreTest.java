@@ -0,0 +1,279 @@
+package cernunnos.trackme;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static cernunnos.trackme.LocationJournalTest.assertLocation;
+import static cernunnos.trackme.LocationJournalTest.location;
+import static org.junit.Assert.*;
+
+/** Tests the chunked columns of LocationStore against a plain list */
+public class LocationStoreTest {
+    private static final int CHUNK_SIZE = 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void addsAndRemovesAcrossChunkBoundaries() {
+        for (final int size : new int[] {CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 2 * CHUNK_SIZE, 2 * CHUNK_SIZE + 1}) {
+            final LocationStore store = new LocationStore();
+            final List<MyLocation> expected = new ArrayList<>();
+            for (int i = 0; i < size; ++i) {
+                add(store, expected, location(i));
+            }
+            assertStore(expected, store);
+
+            final MyLocation replacement = location(-1);
+            store.replaceLast(replacement);
+            expected.set(size - 1, replacement);
+            assertStore(expected, store);
+
+            // removing beyond the first chunk, then appending to the emptied store
+            while (!expected.isEmpty()) {
+                store.removeFirst();
+                expected.remove(0);
+                if (expected.size() % 97 == 0 || expected.size() % CHUNK_SIZE <= 1) {
+                    assertStore(expected, store);
+                }
+            }
+            add(store, expected, location(size));
+            assertStore(expected, store);
+        }
+    }
+
+    @Test
+    public void copyIsUnchangedByOriginal() {
+        final LocationStore store = new LocationStore();
+        final List<MyLocation> expected = new ArrayList<>();
+        for (int i = 0; i < 2 * CHUNK_SIZE + 10; ++i) {
+            add(store, expected, location(i));
+        }
+        final LocationStore copy = new LocationStore(store);
+        final List<MyLocation> copied = new ArrayList<>(expected);
+
+        store.replaceLast(location(-1));
+        for (int i = 0; i < CHUNK_SIZE + 5; ++i) {
+            store.removeFirst();
+            expected.remove(0);
+        }
+        for (int i = 0; i < CHUNK_SIZE; ++i) {
+            add(store, expected, location(10000 + i));
+        }
+        expected.set(expected.size() - 1, location(-2));
+        store.replaceLast(location(-2));
+
+        assertStore(copied, copy);
+        assertEquals(location(-2).time, store.time(store.size() - 1));
+    }
+
+    @Test
+    public void originalIsUnchangedByCopy() {
+        final LocationStore store = new LocationStore();
+        final List<MyLocation> expected = new ArrayList<>();
+        for (int i = 0; i < CHUNK_SIZE + 1; ++i) {
+            add(store, expected, location(i));
+        }
+        final LocationStore copy = new LocationStore(store);
+
+        copy.replaceLast(location(-1));
+        for (int i = 0; i < CHUNK_SIZE; ++i) {
+            copy.addLast(location(5000 + i));
+            copy.removeFirst();
+        }
+        copy.clear();
+        copy.addLast(location(-2));
+
+        assertStore(expected, store);
+        // and the original can still be modified
+        store.replaceLast(location(-3));
+        expected.set(expected.size() - 1, location(-3));
+        add(store, expected, location(-4));
+        assertStore(expected, store);
+    }
+
+    @Test
+    public void copiesOfCopiesAreIndependent() {
+        final Random random = new Random(1);
+        final LocationStore store = new LocationStore();
+        final List<MyLocation> expected = new ArrayList<>();
+        final List<LocationStore> copies = new ArrayList<>();
+        final List<List<MyLocation>> copied = new ArrayList<>();
+        for (int step = 0; step < 20000; ++step) {
+            final int operation = random.nextInt(100);
+            if (operation < 60 || expected.isEmpty()) {
+                add(store, expected, location(step));
+            } else if (operation < 75) {
+                store.replaceLast(location(step));
+                expected.set(expected.size() - 1, location(step));
+            } else if (operation < 98) {
+                store.removeFirst();
+                expected.remove(0);
+            } else {
+                copies.add(new LocationStore(store));
+                copied.add(new ArrayList<>(expected));
+            }
+        }
+        assertStore(expected, store);
+        for (int i = 0; i < copies.size(); ++i) {
+            assertStore(copied.get(i), copies.get(i));
+        }
+    }
+
+    @Test
+    public void findsLowerBound() {
+        final LocationStore store = new LocationStore();
+        final List<Long> times = new ArrayList<>();
+        final Random random = new Random(2);
+        long time = 1000;
+        for (int i = 0; i < 3 * CHUNK_SIZE + 100; ++i) {
+            // duplicates, also across the chunk boundaries
+            if (random.nextInt(4) != 0 || i % CHUNK_SIZE == 0) {
+                time += random.nextInt(3) + 1;
+            }
+            final MyLocation location = location(i);
+            location.time = time;
+            store.addLast(location);
+            times.add(time);
+        }
+        assertLowerBounds(times, store);
+
+        // the first chunk begins in its middle
+        for (int i = 0; i < CHUNK_SIZE + 500; ++i) {
+            store.removeFirst();
+            times.remove(0);
+        }
+        assertLowerBounds(times, store);
+
+        assertEquals(0, new LocationStore().lowerBound(0));
+    }
+
+    @Test
+    public void convertsToByteArray() {
+        final LocationStore store = new LocationStore();
+        final List<MyLocation> expected = new ArrayList<>();
+        for (int i = 0; i < CHUNK_SIZE + 10; ++i) {
+            add(store, expected, location(i));
+        }
+        store.removeFirst();
+        expected.remove(0);
+
+        final ByteBuffer columns = ByteBuffer.wrap(store.toByteArray()).order(ByteOrder.nativeOrder());
+        assertEquals(expected.size() * LocationStore.BYTES_PER_LOCATION, columns.capacity());
+        final MyLocation location = new MyLocation();
+        for (int i = 0; i < expected.size(); ++i) {
+            assertLocation(expected.get(i), LocationStore.get(columns, expected.size(), i, location));
+        }
+    }
+
+    @Test
+    public void readsSpilledChunks() {
+        final File dir = new File(folder.getRoot(), "spilled");
+        final LocationStore spilled = new LocationStore();
+        spilled.setMemoryBudget(dir, 1);
+        final LocationStore resident = new LocationStore();
+        final List<MyLocation> expected = new ArrayList<>();
+        for (int i = 0; i < 10 * CHUNK_SIZE + 100; ++i) {
+            spilled.addLast(location(i));
+            add(resident, expected, location(i));
+        }
+        // a single full chunk is kept in memory
+        assertEquals(9, dir.list().length);
+        assertStores(resident, spilled);
+        assertStore(expected, spilled);
+
+        // removing the first locations across several spilled chunks
+        for (int i = 0; i < 3 * CHUNK_SIZE + 1; ++i) {
+            spilled.removeFirst();
+            resident.removeFirst();
+            if (i % 500 == 0) {
+                assertStores(resident, spilled);
+            }
+        }
+        spilled.replaceLast(location(-1));
+        resident.replaceLast(location(-1));
+        assertStores(resident, spilled);
+        assertEquals(resident.lowerBound(location(5000).time), spilled.lowerBound(location(5000).time));
+
+        // a copy reads the same spilled chunks
+        final LocationStore copy = new LocationStore(spilled);
+        for (int i = 0; i < 2 * CHUNK_SIZE; ++i) {
+            spilled.addLast(location(20000 + i));
+            spilled.removeFirst();
+        }
+        assertStores(resident, copy);
+    }
+
+    @Test
+    public void spillsExistingChunksWhenSettingBudget() {
+        final LocationStore spilled = new LocationStore();
+        final LocationStore resident = new LocationStore();
+        for (int i = 0; i < 4 * CHUNK_SIZE; ++i) {
+            spilled.addLast(location(i));
+            resident.addLast(location(i));
+        }
+        final File dir = new File(folder.getRoot(), "spilled");
+        // budget for two chunks
+        spilled.setMemoryBudget(dir, 2 * CHUNK_SIZE * LocationStore.BYTES_PER_LOCATION);
+        assertEquals(1, dir.list().length);
+        assertStores(resident, spilled);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndexBeyondEnd() {
+        final LocationStore store = new LocationStore();
+        store.addLast(location(0));
+        store.get(1, new MyLocation());
+    }
+
+    static void add(final LocationStore store, final List<MyLocation> locations, final MyLocation location) {
+        store.addLast(location);
+        locations.add(location);
+    }
+
+    /** Asserts that the store contains the given locations, reading them in order and by time */
+    static void assertStore(final List<MyLocation> expected, final LocationStore store) {
+        assertEquals(expected.size(), store.size());
+        final MyLocation location = new MyLocation();
+        for (int i = 0; i < expected.size(); ++i) {
+            assertLocation(expected.get(i), store.get(i, location));
+            assertEquals(expected.get(i).time, store.time(i));
+        }
+    }
+
+    /** Asserts that both stores contain the same locations */
+    private static void assertStores(final LocationStore expected, final LocationStore actual) {
+        assertEquals(expected.size(), actual.size());
+        final MyLocation e = new MyLocation();
+        final MyLocation a = new MyLocation();
+        for (int i = 0; i < expected.size(); ++i) {
+            assertLocation(expected.get(i, e), actual.get(i, a));
+        }
+        // random access, each one possibly reading another spilled chunk
+        final Random random = new Random(3);
+        for (int i = 0; i < 100; ++i) {
+            final int index = random.nextInt(expected.size());
+            assertLocation(expected.get(index, e), actual.get(index, a));
+            assertEquals(expected.time(index), actual.time(index));
+        }
+    }
+
+    /** Asserts lowerBound() for each time between the first and the last one, compared to a linear search */
+    private static void assertLowerBounds(final List<Long> times, final LocationStore store) {
+        for (long time = times.get(0) - 2; time <= times.get(times.size() - 1) + 2; ++time) {
+            int expected = 0;
+            while (expected < times.size() && times.get(expected) < time) {
+                ++expected;
+            }
+            assertEquals("time " + time, expected, store.lowerBound(time));
+        }
+    }
+}
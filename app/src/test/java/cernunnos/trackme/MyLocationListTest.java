@@ -0,0 +1,276 @@
+package cernunnos.trackme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/** Tests the statistics of location lists, which are updated incrementally */
+public class MyLocationListTest {
+    @Test
+    public void statisticsMatchRecomputation() {
+        final Random random = new Random(1);
+        final MyLocationList locations = new MyLocationList();
+        final List<MyLocation> expected = new ArrayList<>();
+        long time = 1500000000000L;
+        for (int step = 0; step < 20000; ++step) {
+            final int operation = random.nextInt(100);
+            if (operation < 55 || expected.isEmpty()) {
+                time += 1000 + random.nextInt(5000);
+                final MyLocation location = randomLocation(random, time);
+                locations.addLast(location);
+                expected.add(location);
+            } else if (operation < 75) {
+                time += random.nextInt(1000);
+                final MyLocation location = randomLocation(random, time);
+                locations.replaceLast(location);
+                expected.set(expected.size() - 1, location);
+            } else if (operation < 99) {
+                locations.removeFirst();
+                expected.remove(0);
+            } else {
+                locations.clear();
+                expected.clear();
+            }
+            assertStatistics("step " + step, expected, locations.getStatistics());
+        }
+    }
+
+    @Test
+    public void copyKeepsStatistics() {
+        final Random random = new Random(2);
+        final MyLocationList locations = new MyLocationList();
+        final List<MyLocation> expected = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            final MyLocation location = randomLocation(random, 1500000000000L + i * 1000L);
+            locations.addLast(location);
+            expected.add(location);
+        }
+        final MyLocationList copy = new MyLocationList(locations);
+        for (int i = 0; i < 50; ++i) {
+            locations.removeFirst();
+            locations.addLast(randomLocation(random, 1500000100000L + i * 1000L));
+        }
+        for (int i = 0; i < 10; ++i) {
+            copy.removeFirst();
+            expected.remove(0);
+            assertStatistics("removal " + i, expected, copy.getStatistics());
+        }
+    }
+
+    @Test
+    public void queriesByTime() {
+        final Random random = new Random(3);
+        final MyLocationList locations = new MyLocationList();
+        final List<MyLocation> expected = new ArrayList<>();
+        long time = 1500000000000L;
+        // several chunks of the store, with duplicate times
+        for (int i = 0; i < 3000; ++i) {
+            time += random.nextInt(3) * 1000;
+            add(locations, expected, randomLocation(random, time));
+        }
+        assertTimeQueries(expected, locations, random);
+
+        for (int i = 0; i < 1500; ++i) {
+            locations.removeFirst();
+            expected.remove(0);
+        }
+        assertTimeQueries(expected, locations, random);
+    }
+
+    @Test
+    public void fallsBackToLinearSearchAfterTimeInversion() {
+        final Random random = new Random(4);
+        final MyLocationList locations = new MyLocationList();
+        final List<MyLocation> expected = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            add(locations, expected, randomLocation(random, 1500000000000L + i * 1000L));
+        }
+        // e.g. the clock has been set back
+        add(locations, expected, randomLocation(random, 1500000000500L));
+        for (int i = 0; i < 100; ++i) {
+            add(locations, expected, randomLocation(random, 1500000001000L + i * 1000L));
+        }
+        assertTimeQueries(expected, locations, random);
+
+        // replacing the last location by an older one
+        final MyLocation older = randomLocation(random, 1500000000000L);
+        locations.replaceLast(older);
+        expected.set(expected.size() - 1, older);
+        assertTimeQueries(expected, locations, random);
+
+        // removing all but the last inversion, and finally that one
+        for (int i = 0; i < 2000; ++i) {
+            locations.removeFirst();
+            expected.remove(0);
+        }
+        assertTimeQueries(expected, locations, random);
+        final MyLocation newer = randomLocation(random, expected.get(expected.size() - 2).time + 1000);
+        locations.replaceLast(newer);
+        expected.set(expected.size() - 1, newer);
+        assertTimeQueries(expected, locations, random);
+    }
+
+    @Test
+    public void interpolatesBetweenDuplicateTimes() {
+        final MyLocationList locations = new MyLocationList();
+        final MyLocation departure = new MyLocation(51.0, 13.0, 1000, true, 2.0f, true, 5.0f);
+        // a stay is stored like GPSReceiver.storeStay(): the arrival and the centroid at the same time
+        final MyLocation arrival = new MyLocation(51.001, 13.0, 2000, true, 0.0f, true, 5.0f);
+        final MyLocation centroid = new MyLocation(51.0012, 13.0002, 2000, false, 0.0f, false, 0.0f);
+        final MyLocation centroidEnd = new MyLocation(51.0012, 13.0002, 4000, false, 0.0f, false, 0.0f);
+        final MyLocation next = new MyLocation(51.002, 13.0, 5000, true, 4.0f, true, 10.0f);
+        for (final MyLocation location : new MyLocation[] {departure, arrival, centroid, centroidEnd, next}) {
+            locations.addLast(location);
+        }
+
+        assertEquals(1, locations.indexOfTime(2000));
+        assertEquals(3, locations.indexOfTime(2001));
+        LocationJournalTest.assertLocation(arrival, locations.getLocationAt(2000));
+        assertEquals(2, locations.getRange(2000, 2001).size());
+        assertEquals(0, locations.getRange(2001, 4000).size());
+
+        // between the duplicates and the next location: starts at the later one
+        final MyLocation during = locations.getLocationAt(3000);
+        assertEquals(centroid.latitude, during.latitude, 1e-12);
+        assertEquals(centroid.longitude, during.longitude, 1e-12);
+        assertFalse(during.hasSpeed);
+        assertFalse(during.hasAccuracy);
+
+        final MyLocation before = locations.getLocationAt(1500);
+        assertEquals((departure.latitude + arrival.latitude) / 2, before.latitude, 1e-12);
+        assertEquals(1500, before.time);
+        assertEquals(1.0f, before.speed, 1e-6);
+        assertEquals(5.0f, before.accuracy, 0);
+
+        final MyLocation after = locations.getLocationAt(4500);
+        assertEquals((centroidEnd.latitude + next.latitude) / 2, after.latitude, 1e-12);
+        assertFalse(after.hasSpeed);
+    }
+
+    @Test
+    public void interpolatesAcrossAntimeridian() {
+        final MyLocationList locations = new MyLocationList();
+        locations.addLast(new MyLocation(-17.0, 179.9, 0, false, 0.0f, true, 5.0f));
+        locations.addLast(new MyLocation(-17.0, -179.9, 4000, false, 0.0f, true, 5.0f));
+        locations.addLast(new MyLocation(-17.0, 179.9, 8000, false, 0.0f, true, 5.0f));
+
+        assertEquals(179.95, locations.getLocationAt(1000).longitude, 1e-9);
+        assertEquals(180.0, Math.abs(locations.getLocationAt(2000).longitude), 1e-9);
+        assertEquals(-179.95, locations.getLocationAt(3000).longitude, 1e-9);
+        assertEquals(-179.95, locations.getLocationAt(5000).longitude, 1e-9);
+        assertEquals(179.95, locations.getLocationAt(7000).longitude, 1e-9);
+    }
+
+    @Test
+    public void returnsNullOutsideOfTrack() {
+        final MyLocationList locations = new MyLocationList();
+        assertNull(locations.getLocationAt(1000));
+        assertEquals(0, locations.indexOfTime(1000));
+        assertEquals(0, locations.getRange(0, Long.MAX_VALUE).size());
+
+        locations.addLast(new MyLocation(51.0, 13.0, 1000, false, 0.0f, true, 5.0f));
+        locations.addLast(new MyLocation(51.1, 13.1, 2000, false, 0.0f, true, 5.0f));
+        assertNull(locations.getLocationAt(999));
+        assertNull(locations.getLocationAt(2001));
+        assertEquals(51.0, locations.getLocationAt(1000).latitude, 0);
+        assertEquals(51.1, locations.getLocationAt(2000).latitude, 0);
+        assertEquals(2, locations.indexOfTime(2001));
+        assertEquals(0, locations.getRange(2001, 3000).size());
+        assertEquals(0, locations.getRange(0, 1000).size());
+    }
+
+    private static void add(final MyLocationList locations, final List<MyLocation> expected, final MyLocation location) {
+        locations.addLast(location);
+        expected.add(location);
+    }
+
+    /** Asserts indexOfTime(), getRange() and getLocationAt() for random times, compared to linear searches */
+    private static void assertTimeQueries(final List<MyLocation> expected, final MyLocationList locations,
+                                          final Random random) {
+        final long first = expected.get(0).time;
+        final long last = expected.get(expected.size() - 1).time;
+        for (int n = 0; n < 500; ++n) {
+            final long time = first - 2000 + (long)(random.nextDouble() * (last - first + 4000));
+            int index = 0;
+            while (index < expected.size() && expected.get(index).time < time) {
+                ++index;
+            }
+            assertEquals("time " + time, index, locations.indexOfTime(time));
+
+            final long toTime = time + random.nextInt(20000);
+            final List<MyLocation> range = new ArrayList<>();
+            for (final MyLocation location : expected) {
+                if (location.time >= time && location.time < toTime) {
+                    range.add(location);
+                }
+            }
+            final MyLocationList actualRange = locations.getRange(time, toTime);
+            assertEquals(range.size(), actualRange.size());
+            for (int i = 0; i < range.size(); ++i) {
+                LocationJournalTest.assertLocation(range.get(i), actualRange.get(i, new MyLocation()));
+            }
+
+            final MyLocation location = locations.getLocationAt(time);
+            if (index == expected.size() || index == 0 && expected.get(0).time != time) {
+                assertNull("time " + time, location);
+            } else {
+                assertEquals(time, location.time);
+                if (expected.get(index).time == time) {
+                    LocationJournalTest.assertLocation(expected.get(index), location);
+                } else {
+                    // between the location before and the one found
+                    final MyLocation before = expected.get(index - 1);
+                    final MyLocation after = expected.get(index);
+                    final double ratio = (double)(time - before.time) / (after.time - before.time);
+                    assertEquals(before.latitude + (after.latitude - before.latitude) * ratio, location.latitude, 1e-9);
+                    assertEquals(before.longitude + (after.longitude - before.longitude) * ratio, location.longitude, 1e-9);
+                }
+            }
+        }
+    }
+
+    /** Returns a random location close to Dresden at the given time */
+    private static MyLocation randomLocation(final Random random, final long time) {
+        final boolean hasSpeed = random.nextInt(4) != 0;
+        return new MyLocation(51.05 + random.nextDouble() * 0.01, 13.74 + random.nextDouble() * 0.01, time,
+                hasSpeed, hasSpeed ? random.nextFloat() * 40 : 0.0f, true, 5.0f);
+    }
+
+    /** Asserts that the given statistics match those computed from scratch for the given locations */
+    private static void assertStatistics(final String message, final List<MyLocation> locations,
+                                         final MyLocationList.Statistics statistics) {
+        final int size = locations.size();
+        assertEquals(message, size, statistics.numLocations);
+        final MyLocation last = size > 0 ? locations.get(size - 1) : null;
+        assertEquals(message, last != null && last.hasSpeed ? last.speed * 3.6 : 0, statistics.speedLast, 1e-9);
+        if (size <= 1) {
+            assertEquals(message, 0, statistics.distanceTotal, 0);
+            assertEquals(message, 0, statistics.distanceLast, 0);
+            assertEquals(message, 0, statistics.speedAvg, 0);
+            assertEquals(message, 0, statistics.speedMax, 0);
+            assertEquals(message, 0, statistics.duration);
+            return;
+        }
+
+        double distance = 0;
+        double speedSum = 0;
+        double speedMax = 0;
+        for (int i = 0; i < size; ++i) {
+            final MyLocation location = locations.get(i);
+            if (i > 0) {
+                distance += locations.get(i - 1).distanceTo(location);
+            }
+            speedSum += location.speed;
+            speedMax = Math.max(speedMax, location.speed);
+        }
+        assertEquals(message, distance, statistics.distanceTotal, 1e-6 * Math.max(1, distance));
+        assertEquals(message, locations.get(size - 2).distanceTo(last), statistics.distanceLast, 1e-6);
+        assertEquals(message, speedSum / size * 3.6, statistics.speedAvg, 1e-9 * Math.max(1, speedSum));
+        assertEquals(message, speedMax * 3.6, statistics.speedMax, 1e-6);
+        assertEquals(message, last.time - locations.get(0).time, statistics.duration);
+    }
+}
@@ -0,0 +1,191 @@
+package cernunnos.trackme;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** Tests the state machine of SamplingController with synthetic locations */
+public class SamplingControllerTest {
+    // meters per degree of latitude
+    private static final double METERS_PER_DEGREE = 111195.0;
+    private static final double LATITUDE = 51.05;
+    private static final double LONGITUDE = 13.74;
+    // wall clock time when recording started, "now" starts at 0
+    private static final long START_TIME = 1500000000000L;
+    private static final long MAX_INTERVAL_MILLIS = 60 * 1000;
+
+    private SamplingController sampling;
+
+    @Before
+    public void setUp() {
+        sampling = new SamplingController(MAX_INTERVAL_MILLIS);
+        sampling.start(0);
+    }
+
+    @Test
+    public void startsMovingWithDenseInterval() {
+        assertEquals(SamplingController.State.MOVING, sampling.getState());
+        assertFalse(sampling.isSuspended());
+        assertEquals(SamplingController.DENSE_INTERVAL_MILLIS, sampling.getIntervalMillis());
+        assertEquals(-1, sampling.getWakeupDelayMillis());
+    }
+
+    @Test
+    public void adaptsIntervalToSpeed() {
+        // the first location has no predecessor, nothing changes
+        assertFalse(sampling.onLocation(location(0, 0, 0, 10), 0));
+
+        // 100 m apart at 10 m/s
+        assertTrue(sampling.onLocation(location(100, 0, 10000, 10), 10000));
+        assertEquals(10000, sampling.getIntervalMillis());
+
+        // slightly faster: within the hysteresis, the interval is kept
+        assertFalse(sampling.onLocation(location(220, 0, 20000, 12), 20000));
+        assertEquals(10000, sampling.getIntervalMillis());
+
+        // slower by more than the hysteresis
+        assertTrue(sampling.onLocation(location(270, 0, 30000, 5), 30000));
+        assertEquals(20000, sampling.getIntervalMillis());
+
+        // very fast: limited by the dense interval
+        assertTrue(sampling.onLocation(location(1270, 0, 40000, 100), 40000));
+        assertEquals(SamplingController.DENSE_INTERVAL_MILLIS, sampling.getIntervalMillis());
+
+        // walking: limited by the maximum interval
+        assertTrue(sampling.onLocation(location(1300, 0, 70000, 1), 70000));
+        assertEquals(MAX_INTERVAL_MILLIS, sampling.getIntervalMillis());
+        assertEquals(SamplingController.State.MOVING, sampling.getState());
+    }
+
+    @Test
+    public void usesDenseIntervalInTurns() {
+        long now = 0;
+        for (int i = 0; i < 5; ++i) {
+            sampling.onLocation(location(i * 100, 0, now, 10), now);
+            now += 10000;
+        }
+        assertEquals(10000, sampling.getIntervalMillis());
+
+        // turning east
+        assertTrue(sampling.onLocation(location(400, 100, now, 10), now));
+        assertEquals(SamplingController.DENSE_INTERVAL_MILLIS, sampling.getIntervalMillis());
+
+        // straight on: back to the interval of the speed
+        now += 10000;
+        assertTrue(sampling.onLocation(location(400, 200, now, 10), now));
+        assertEquals(10000, sampling.getIntervalMillis());
+    }
+
+    @Test
+    public void suspendsWhenStationary() {
+        long now = 0;
+        // jitter within the stationary radius
+        while (now < 3 * 60 * 1000) {
+            sampling.onLocation(location(now % 20000 / 1000, 0, now, 0), now);
+            assertEquals(SamplingController.State.MOVING, sampling.getState());
+            now += SamplingController.DENSE_INTERVAL_MILLIS;
+        }
+        assertTrue(sampling.onLocation(location(5, 5, now, 0), now));
+        assertEquals(SamplingController.State.STATIONARY, sampling.getState());
+        assertTrue(sampling.isSuspended());
+        assertEquals(SamplingController.PROBE_INTERVAL_MILLIS, sampling.getWakeupDelayMillis());
+    }
+
+    @Test
+    public void leavingRadiusRestartsStationaryDetection() {
+        long now = 0;
+        while (now < 2 * 60 * 1000) {
+            sampling.onLocation(location(0, 0, now, 0), now);
+            now += SamplingController.DENSE_INTERVAL_MILLIS;
+        }
+        // moved on by 50 m, the minutes before don't count
+        sampling.onLocation(location(50, 0, now, 0), now);
+        final long anchorMillis = now;
+        while (now < anchorMillis + 3 * 60 * 1000) {
+            sampling.onLocation(location(50, 0, now, 0), now);
+            assertEquals(SamplingController.State.MOVING, sampling.getState());
+            now += SamplingController.DENSE_INTERVAL_MILLIS;
+        }
+        assertTrue(sampling.onLocation(location(50, 0, now, 0), now));
+        assertEquals(SamplingController.State.STATIONARY, sampling.getState());
+    }
+
+    @Test
+    public void probesWhileStationary() {
+        long now = becomeStationary();
+
+        // probing without getting a location, e.g. indoors
+        now += SamplingController.PROBE_INTERVAL_MILLIS;
+        assertTrue(sampling.onWakeup(now));
+        assertEquals(SamplingController.State.PROBING, sampling.getState());
+        assertFalse(sampling.isSuspended());
+        assertEquals(SamplingController.DENSE_INTERVAL_MILLIS, sampling.getIntervalMillis());
+        assertEquals(SamplingController.PROBE_TIMEOUT_MILLIS, sampling.getWakeupDelayMillis());
+        now += SamplingController.PROBE_TIMEOUT_MILLIS;
+        assertTrue(sampling.onWakeup(now));
+        assertEquals(SamplingController.State.STATIONARY, sampling.getState());
+
+        // probing finds the same place
+        now += SamplingController.PROBE_INTERVAL_MILLIS;
+        assertTrue(sampling.onWakeup(now));
+        assertTrue(sampling.onLocation(location(10, 0, now + 20000, 0), now + 20000));
+        assertEquals(SamplingController.State.STATIONARY, sampling.getState());
+
+        // probing finds a new place
+        now += SamplingController.PROBE_INTERVAL_MILLIS;
+        assertTrue(sampling.onWakeup(now));
+        assertTrue(sampling.onLocation(location(500, 0, now + 20000, 0), now + 20000));
+        assertEquals(SamplingController.State.MOVING, sampling.getState());
+        assertEquals(SamplingController.DENSE_INTERVAL_MILLIS, sampling.getIntervalMillis());
+        assertEquals(-1, sampling.getWakeupDelayMillis());
+        assertFalse(sampling.onWakeup(now + 30000));
+    }
+
+    @Test
+    public void resumesOnDistantCoarseLocation() {
+        final long now = becomeStationary();
+
+        assertFalse(sampling.onCoarseLocation(location(150, 0, now + 1000, 0), now + 1000));
+        assertEquals(SamplingController.State.STATIONARY, sampling.getState());
+        assertTrue(sampling.onCoarseLocation(location(300, 0, now + 2000, 0), now + 2000));
+        assertEquals(SamplingController.State.MOVING, sampling.getState());
+        assertEquals(SamplingController.DENSE_INTERVAL_MILLIS, sampling.getIntervalMillis());
+
+        // coarse locations are ignored unless suspended
+        assertFalse(sampling.onCoarseLocation(location(1000, 0, now + 3000, 0), now + 3000));
+    }
+
+    @Test
+    public void countsRadioTime() {
+        final long stationaryMillis = becomeStationary();
+        assertEquals(stationaryMillis, sampling.getRadioOnMillis(stationaryMillis + 1000));
+
+        final long wakeupMillis = stationaryMillis + SamplingController.PROBE_INTERVAL_MILLIS;
+        sampling.onWakeup(wakeupMillis);
+        sampling.onLocation(location(0, 0, wakeupMillis + 10000, 0), wakeupMillis + 10000);
+        assertEquals(stationaryMillis + 10000, sampling.getRadioOnMillis(wakeupMillis + 20000));
+        assertEquals((double)(stationaryMillis + 10000) / (wakeupMillis + 20000),
+                sampling.getRadioOnRatio(wakeupMillis + 20000), 1e-9);
+
+        sampling.stop(wakeupMillis + 30000);
+        assertEquals(stationaryMillis + 10000, sampling.getRadioOnMillis(wakeupMillis + 40000));
+    }
+
+    /** Stays at the same place until GPS is suspended, returns the time of suspending it */
+    private long becomeStationary() {
+        long now = 0;
+        while (!sampling.isSuspended()) {
+            sampling.onLocation(location(0, 0, now, 0), now);
+            now += SamplingController.DENSE_INTERVAL_MILLIS;
+        }
+        return now - SamplingController.DENSE_INTERVAL_MILLIS;
+    }
+
+    /** Returns a location the given meters north and east of the start, "now" maps to its time */
+    private static MyLocation location(final double north, final double east, final long now, final float speed) {
+        final double latitude = LATITUDE + north / METERS_PER_DEGREE;
+        final double longitude = LONGITUDE + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+        return new MyLocation(latitude, longitude, START_TIME + now, speed > 0, speed, true, 5.0f);
+    }
+}
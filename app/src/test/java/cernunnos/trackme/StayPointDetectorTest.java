@@ -0,0 +1,140 @@
+package cernunnos.trackme;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/** Tests which locations StayPointDetector holds back and which stays it reports */
+public class StayPointDetectorTest {
+    // meters per degree of latitude
+    private static final double METERS_PER_DEGREE = 111195.0;
+    private static final double LATITUDE = 51.05;
+    private static final double LONGITUDE = 13.74;
+    private static final long START_TIME = 1500000000000L;
+    private static final double RADIUS = 50;
+    private static final long MIN_DURATION_MILLIS = 5 * 60 * 1000;
+
+    private StayPointDetector detector;
+
+    @Before
+    public void setUp() {
+        detector = new StayPointDetector(RADIUS, MIN_DURATION_MILLIS);
+    }
+
+    @Test
+    public void reportsStay() {
+        // walking up, then standing still with some jitter for 10 minutes
+        for (int i = 0; i < 5; ++i) {
+            assertFalse(detector.add(location(i * 200 - 1000, 0, i * 60)));
+        }
+        assertFalse(detector.add(location(0, 0, 300)));
+        for (int i = 1; i <= 120; ++i) {
+            assertTrue(detector.add(location(i % 2 == 0 ? 10 : -10, i % 3 == 0 ? 10 : -10, 300 + i * 5)));
+            assertFalse(detector.stayEnded());
+        }
+
+        // walking on ends the stay
+        assertFalse(detector.add(location(200, 0, 960)));
+        assertTrue(detector.stayEnded());
+        assertTrue(detector.getReleased().isEmpty());
+        final StayPointDetector.Stay stay = detector.getStay();
+        assertEquals(START_TIME + 300 * 1000, stay.start);
+        assertEquals(START_TIME + 900 * 1000, stay.end);
+        assertEquals(121, stay.count);
+        assertEquals(0, distance(stay.latitude, stay.longitude), 5);
+        assertEquals(120, detector.getNumSuppressed());
+    }
+
+    @Test
+    public void releasesShortStop() {
+        assertFalse(detector.add(location(0, 0, 0)));
+        final List<MyLocation> stop = new ArrayList<>();
+        for (int i = 1; i <= 24; ++i) {
+            final MyLocation location = location(i % 2 == 0 ? 5 : -5, 0, i * 5);
+            stop.add(location);
+            assertTrue(detector.add(location));
+        }
+        assertEquals(24, detector.getNumSuppressed());
+
+        assertFalse(detector.add(location(200, 0, 150)));
+        assertFalse(detector.stayEnded());
+        assertEquals(stop, detector.getReleased());
+        assertEquals(0, detector.getNumSuppressed());
+
+        // released until the next location
+        assertFalse(detector.add(location(400, 0, 160)));
+        assertTrue(detector.getReleased().isEmpty());
+    }
+
+    @Test
+    public void releasesShortStopOnFinish() {
+        detector.add(location(0, 0, 0));
+        final MyLocation location = location(1, 1, 5);
+        assertTrue(detector.add(location));
+
+        assertFalse(detector.finish());
+        assertEquals(1, detector.getReleased().size());
+        assertSame(location, detector.getReleased().get(0));
+    }
+
+    @Test
+    public void reportsStayOnFinish() {
+        detector.add(location(0, 0, 0));
+        for (int i = 1; i <= 70; ++i) {
+            detector.add(location(0, 1, i * 5));
+        }
+
+        assertTrue(detector.finish());
+        assertEquals(START_TIME, detector.getStay().start);
+        assertEquals(START_TIME + 350 * 1000, detector.getStay().end);
+        assertEquals(71, detector.getStay().count);
+    }
+
+    @Test
+    public void slowDriftIsNoStay() {
+        // crawling at 0.25 m/s for 20 minutes, a run leaves the radius after 200 s
+        final List<MyLocation> stored = new ArrayList<>();
+        for (int i = 0; i <= 240; ++i) {
+            final MyLocation location = location(i * 1.25, 0, i * 5);
+            if (!detector.add(location)) {
+                assertFalse(detector.stayEnded());
+                stored.addAll(detector.getReleased());
+                stored.add(location);
+            }
+        }
+        assertFalse(detector.finish());
+        stored.addAll(detector.getReleased());
+
+        // nothing got lost
+        assertEquals(241, stored.size());
+        for (int i = 0; i < stored.size(); ++i) {
+            assertEquals(START_TIME + i * 5000L, stored.get(i).time);
+        }
+        assertEquals(0, detector.getNumSuppressed());
+    }
+
+    @Test
+    public void usesAccuracyAsRadius() {
+        detector.add(location(0, 0, 0));
+        assertFalse(detector.add(location(80, 0, 5)));
+        final MyLocation inaccurate = location(0, 0, 10);
+        inaccurate.accuracy = 100;
+        assertTrue(detector.add(inaccurate));
+    }
+
+    /** Returns a location the given meters north and east of the start at the given seconds */
+    private static MyLocation location(final double north, final double east, final long seconds) {
+        final double latitude = LATITUDE + north / METERS_PER_DEGREE;
+        final double longitude = LONGITUDE + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+        return new MyLocation(latitude, longitude, START_TIME + seconds * 1000, false, 0.0f, true, 5.0f);
+    }
+
+    /** Returns the distance in meters of the given coordinates from the start */
+    private static double distance(final double latitude, final double longitude) {
+        return DistanceStrategy.FAST.distance(LATITUDE, LONGITUDE, latitude, longitude);
+    }
+}
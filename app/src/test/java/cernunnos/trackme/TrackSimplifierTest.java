@@ -0,0 +1,150 @@
+package cernunnos.trackme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/** Tests which locations TrackSimplifier drops, they are lost for good */
+public class TrackSimplifierTest {
+    // meters per degree of latitude
+    private static final double METERS_PER_DEGREE = 111195.0;
+
+    @Test
+    public void dropsCollinearLocations() {
+        final List<MyLocation> track = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            track.add(location(i, 51.0 + i * 1e-4, 13.0 + i * 2e-4));
+        }
+        final List<MyLocation> kept = simplify(new TrackSimplifier(5), track);
+
+        assertEquals(2, kept.size());
+        assertSame(track.get(0), kept.get(0));
+        assertSame(track.get(49), kept.get(1));
+    }
+
+    @Test
+    public void keepsCorner() {
+        final List<MyLocation> track = new ArrayList<>();
+        for (int i = 0; i <= 20; ++i) {
+            track.add(location(i, 51.0 + i * 1e-4, 13.0));
+        }
+        for (int i = 1; i <= 20; ++i) {
+            track.add(location(20 + i, 51.002, 13.0 + i * 1e-4));
+        }
+        final List<MyLocation> kept = simplify(new TrackSimplifier(5), track);
+
+        assertEquals(3, kept.size());
+        assertSame(track.get(0), kept.get(0));
+        assertSame(track.get(20), kept.get(1));
+        assertSame(track.get(40), kept.get(2));
+    }
+
+    @Test
+    public void keepsEverythingWithZeroTolerance() {
+        final List<MyLocation> track = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            // exactly collinear: along a meridian
+            track.add(location(i, 51.0 + i * 1e-4, 13.0));
+        }
+        final List<MyLocation> kept = simplify(new TrackSimplifier(0), track);
+
+        assertEquals(track, kept);
+    }
+
+    @Test
+    public void limitsDroppedLocationsPerSegment() {
+        final List<MyLocation> track = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            track.add(location(i, 51.0 + i * 1e-5, 13.0 + i * 1e-5));
+        }
+        final List<MyLocation> kept = simplify(new TrackSimplifier(5), track);
+
+        assertTrue(kept.size() >= 1000 / 65);
+        assertSame(track.get(999), kept.get(kept.size() - 1));
+    }
+
+    @Test
+    public void droppedLocationsAreWithinTolerance() {
+        final double tolerance = 10;
+        final Random random = new Random(1);
+        final List<MyLocation> track = new ArrayList<>();
+        double latitude = 51.0;
+        double longitude = 13.0;
+        double heading = 0;
+        for (int i = 0; i < 5000; ++i) {
+            if (random.nextInt(30) == 0) {
+                heading += random.nextGaussian();
+            }
+            latitude += Math.cos(heading) * 2e-4 + random.nextGaussian() * 2e-5;
+            longitude += Math.sin(heading) * 3e-4 + random.nextGaussian() * 2e-5;
+            track.add(location(i, latitude, longitude));
+        }
+        final TrackSimplifier simplifier = new TrackSimplifier(tolerance);
+        final List<MyLocation> kept = simplify(simplifier, track);
+        assertTrue(kept.size() < track.size());
+
+        // each dropped location lies between the kept ones before and after it
+        int next = 0;
+        double maxDeviation = 0;
+        for (int i = 0; i < track.size(); ++i) {
+            if (track.get(i) == kept.get(next)) {
+                ++next;
+                continue;
+            }
+            final double deviation = distanceToSegment(track.get(i), kept.get(next - 1), kept.get(next));
+            assertTrue("location " + i + " deviates " + deviation + "m", deviation < tolerance + 0.01);
+            maxDeviation = Math.max(maxDeviation, deviation);
+        }
+        assertEquals(kept.size(), next);
+        assertEquals(maxDeviation, simplifier.getMaxDeviation(), 0.01);
+        assertEquals((double)kept.size() / track.size(), simplifier.getRetainedRatio(), 1e-9);
+    }
+
+    @Test
+    public void resetStartsNewTrack() {
+        final TrackSimplifier simplifier = new TrackSimplifier(5);
+        final List<MyLocation> track = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            track.add(location(i, 51.0 + i * 1e-4, 13.0));
+        }
+        simplify(simplifier, track);
+        simplifier.reset();
+
+        // the next two locations can't replace anything
+        assertFalse(simplifier.add(location(10, 51.1, 13.0)));
+        assertFalse(simplifier.add(location(11, 51.1001, 13.0)));
+    }
+
+    private static MyLocation location(final int i, final double latitude, final double longitude) {
+        return new MyLocation(latitude, longitude, 1500000000000L + i * 1000L, false, 0.0f, true, 5.0f);
+    }
+
+    /** Passes the given track to the simplifier and returns the kept locations, like GPSReceiver */
+    private static List<MyLocation> simplify(final TrackSimplifier simplifier, final List<MyLocation> track) {
+        final List<MyLocation> kept = new ArrayList<>();
+        for (final MyLocation location : track) {
+            if (simplifier.add(location) && !kept.isEmpty()) {
+                kept.set(kept.size() - 1, location);
+            } else {
+                kept.add(location);
+            }
+        }
+        return kept;
+    }
+
+    /** Returns the distance in meters of the given location to the segment from start to end */
+    private static double distanceToSegment(final MyLocation location, final MyLocation start, final MyLocation end) {
+        final double cosLatitude = Math.cos(Math.toRadians(start.latitude));
+        final double px = (location.longitude - start.longitude) * cosLatitude * METERS_PER_DEGREE;
+        final double py = (location.latitude - start.latitude) * METERS_PER_DEGREE;
+        final double ex = (end.longitude - start.longitude) * cosLatitude * METERS_PER_DEGREE;
+        final double ey = (end.latitude - start.latitude) * METERS_PER_DEGREE;
+        final double lengthSquared = ex * ex + ey * ey;
+        final double t = lengthSquared > 0 ? Math.max(0, Math.min(1, (px * ex + py * ey) / lengthSquared)) : 0;
+        return Math.hypot(px - t * ex, py - t * ey);
+    }
+}
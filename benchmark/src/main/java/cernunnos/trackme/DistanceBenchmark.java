@@ -0,0 +1,51 @@
+package cernunnos.trackme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks the distance computation between consecutive locations */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+    // number of precomputed locations, a power of two
+    private static final int NUM_LOCATIONS = 1024;
+
+    // see DistanceStrategy, JMH needs public types for parameters
+    @Param({"FAST", "EXACT"})
+    String strategyName;
+
+    private DistanceStrategy strategy;
+
+    private final MyLocation[] locations = new MyLocation[NUM_LOCATIONS];
+    private int index = 0;
+
+    @Setup
+    public void setup() {
+        strategy = DistanceStrategy.valueOf(strategyName);
+        final TrackGenerator generator = new TrackGenerator(1);
+        for (int i = 0; i < NUM_LOCATIONS; ++i) {
+            locations[i] = generator.next(new MyLocation());
+        }
+    }
+
+    @Benchmark
+    public float distance() {
+        index = (index + 1) & (NUM_LOCATIONS - 1);
+        return locations[index].distanceTo(locations[(index + 1) & (NUM_LOCATIONS - 1)], strategy);
+    }
+}
@@ -0,0 +1,92 @@
+package cernunnos.trackme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for recording locations: appending to a full backlog (dropping the oldest location
+ * like GPSReceiver does), computing statistics and taking a snapshot for uploading, as well as
+ * querying the backlog by time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class LocationListBenchmark {
+    @Param({"1000", "100000", "10000000"})
+    int size;
+
+    private MyLocationList locations;
+    private TrackGenerator generator;
+    private final MyLocation location = new MyLocation();
+    // time inside the backlog for queries
+    private long queryTime;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        locations = TrackGenerator.track(size, 1);
+        // continue the track where it ended
+        generator = new TrackGenerator(1);
+        for (int i = 0; i < size; ++i) {
+            generator.next(location);
+        }
+        queryTime = (locations.getFist().time + locations.getLast().time) / 2 + 500;
+    }
+
+    /** Adds a location to the full backlog */
+    @Benchmark
+    public MyLocationList append() {
+        locations.removeFirst();
+        locations.addLast(generator.next(location));
+        return locations;
+    }
+
+    /** Adds a location to the full backlog and computes the statistics which get broadcast afterwards */
+    @Benchmark
+    public MyLocationList.Statistics appendAndStatistics() {
+        locations.removeFirst();
+        locations.addLast(generator.next(location));
+        return locations.getStatistics();
+    }
+
+    /** Copies the backlog, as done for each upload */
+    @Benchmark
+    public MyLocationList snapshot() {
+        return new MyLocationList(locations);
+    }
+
+    /** Copies the backlog and continues recording, i.e. the backlog has to copy what it shares with the copy */
+    @Benchmark
+    public MyLocationList snapshotAndAppend() {
+        final MyLocationList snapshot = new MyLocationList(locations);
+        locations.removeFirst();
+        locations.addLast(generator.next(location));
+        return snapshot;
+    }
+
+    /** Interpolates the location at a given time */
+    @Benchmark
+    public MyLocation locationAt() {
+        return locations.getLocationAt(queryTime);
+    }
+
+    /** Extracts the locations of one hour (at most 3600 locations) and computes their statistics */
+    @Benchmark
+    public MyLocationList.Statistics rangeStatistics() {
+        return locations.getRange(queryTime, queryTime + 60 * 60 * 1000).getStatistics();
+    }
+}
@@ -0,0 +1,73 @@
+package cernunnos.trackme;
+
+import android.os.Parcel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks marshalling the backlog into a Parcel and back, as done when handing it to another
+ * component via an Intent. Binder transactions are limited to 1 MB, so larger backlogs can't be
+ * handed over at all. Run main() for printing the size of the Parcel for each benchmarked backlog
+ * size, e.g. java -cp benchmark/build/libs/benchmarks.jar cernunnos.trackme.ParcelBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ParcelBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int size;
+
+    private MyLocationList locations;
+    private Parcel parcel;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        locations = TrackGenerator.track(size, 1);
+        parcel = Parcel.obtain();
+    }
+
+    /** Flattens the backlog into a Parcel */
+    @Benchmark
+    public int write() {
+        parcel.recycle();
+        locations.writeToParcel(parcel, 0);
+        return parcel.dataSize();
+    }
+
+    /** Flattens the backlog into a Parcel and recreates it, like sending it to another component */
+    @Benchmark
+    public MyLocationList writeAndRead() {
+        parcel.recycle();
+        locations.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        return MyLocationList.CREATOR.createFromParcel(parcel);
+    }
+
+    /** Prints the size of the Parcel for each benchmarked backlog size, outside of any measurement */
+    public static void main(final String[] args) throws NoSuchFieldException {
+        final Field field = ParcelBenchmark.class.getDeclaredField("size");
+        for (final String size : field.getAnnotation(Param.class).value()) {
+            final Parcel parcel = Parcel.obtain();
+            TrackGenerator.track(Integer.parseInt(size), 1).writeToParcel(parcel, 0);
+            System.out.println(size + " locations: " + parcel.dataSize() + " bytes");
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package cernunnos.trackme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for saving and restoring the backlog: rewriting the whole journal, committing new
+ * locations to it (one at a time or as a group sharing the sync) and replaying it, as well as reading
+ * the backlog's summary which is all a restart needs before replaying. Files are written to the
+ * temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class StorageBenchmark {
+    @Param({"1000", "100000", "10000000"})
+    int size;
+
+    private MyLocationList locations;
+    private File file;
+    private File summaryFile;
+    private LocationJournal journal;
+    private TrackGenerator generator;
+    private final MyLocation location = new MyLocation();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        locations = TrackGenerator.track(size, 1);
+        generator = new TrackGenerator(2);
+        file = File.createTempFile("locationJournal", null);
+        journal = new LocationJournal(file);
+        journal.compact(locations);
+        summaryFile = File.createTempFile("backlogSummary", null);
+        BacklogSummary.write(summaryFile, locations);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (!file.delete()) {
+            System.err.println("could not delete " + file);
+        }
+        if (!summaryFile.delete()) {
+            System.err.println("could not delete " + summaryFile);
+        }
+    }
+
+    /** Rewrites the journal from scratch */
+    @Benchmark
+    public LocationJournal save() throws IOException {
+        journal.compact(locations);
+        return journal;
+    }
+
+    /** Commits a single location to the journal, as done for each new location without a save interval */
+    @Benchmark
+    public LocationJournal appendAndCommit() throws IOException {
+        journal.append(generator.next(location));
+        journal.commit();
+        return journal;
+    }
+
+    /** Commits 100 locations at once, reported per location */
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public LocationJournal appendAndCommitGroup() throws IOException {
+        for (int i = 0; i < 100; ++i) {
+            journal.append(generator.next(location));
+        }
+        journal.commit();
+        return journal;
+    }
+
+    /** Restores the backlog from the journal */
+    @Benchmark
+    public MyLocationList restore() throws IOException {
+        return new LocationJournal(file).replay();
+    }
+
+    /** Reads the summary of the backlog, independent of its size */
+    @Benchmark
+    public BacklogSummary restoreSummary() {
+        return BacklogSummary.read(summaryFile);
+    }
+}
@@ -0,0 +1,54 @@
+package cernunnos.trackme;
+
+import java.util.Random;
+
+/**
+ * Generates a reproducible synthetic track for benchmarks: a random walk with one location per
+ * second and a few meters between consecutive locations, similar to recording while cycling.
+ */
+class TrackGenerator {
+    // meters per degree latitude (roughly)
+    private static final double METERS_PER_DEGREE = 111195.0;
+
+    private final Random random;
+
+    // current state
+    private double latitude = 52.5200;
+    private double longitude = 13.4050;
+    private double heading = 0.0;
+    private long time = 1500000000000L;
+
+    /** Creates a new generator, the same seed results in the same track */
+    TrackGenerator(final long seed) {
+        random = new Random(seed);
+    }
+
+    /** Moves on and fills the given location with the new position, returns the given location */
+    MyLocation next(final MyLocation location) {
+        heading += random.nextGaussian() * 0.2;
+        final double speed = 3.0 + random.nextDouble() * 5.0;
+        latitude += Math.cos(heading) * speed / METERS_PER_DEGREE;
+        longitude += Math.sin(heading) * speed / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+        time += 1000;
+
+        location.latitude = latitude;
+        location.longitude = longitude;
+        location.time = time;
+        location.hasSpeed = true;
+        location.speed = (float)speed;
+        location.hasAccuracy = true;
+        location.accuracy = 3.0f + random.nextFloat() * 10.0f;
+        return location;
+    }
+
+    /** Returns a list containing the given number of locations */
+    static MyLocationList track(final int size, final long seed) {
+        final TrackGenerator generator = new TrackGenerator(seed);
+        final MyLocationList locations = new MyLocationList(size);
+        final MyLocation location = new MyLocation();
+        for (int i = 0; i < size; ++i) {
+            locations.addLast(generator.next(location));
+        }
+        return locations;
+    }
+}
@@ -0,0 +1,67 @@
+package cernunnos.trackme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/** Benchmarks generating the (optionally compressed) upload payload, i.e. rewriting the whole server file */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class UploadBenchmark {
+    @Param({"1000", "100000", "10000000"})
+    int size;
+
+    // see LocationEncoder.Format, JMH needs public types for parameters
+    @Param({"TEXT", "BINARY", "POLYLINE"})
+    String formatName;
+
+    // gzip compress the payload, like FTPService does if enabled
+    @Param({"false", "true"})
+    boolean compressed;
+
+    private MyLocationList locations;
+    private LocationEncoder encoder;
+
+    /** Discards all data like a fast network would */
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() {
+        locations = TrackGenerator.track(size, 1);
+        encoder = new LocationEncoder(LocationEncoder.Format.valueOf(formatName));
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        final OutputStream out = compressed ? new GZIPOutputStream(NULL_STREAM, 8192) : NULL_STREAM;
+        final long bytes = encoder.write(locations, 0, out);
+        out.close();
+        return bytes;
+    }
+}
@@ -0,0 +1,96 @@
+package android.location;
+
+/**
+ * Off-device replacement of Android's Location class for benchmarks.
+ *
+ * Only contains what the benchmarked app classes use. distanceBetween() solves the inverse
+ * geodesic problem on the WGS84 ellipsoid using Vincenty's iterative formulae, like Android does.
+ */
+public class Location {
+    // WGS84 ellipsoid
+    private static final double A = 6378137.0;
+    private static final double F = 1 / 298.257223563;
+    private static final double B = (1 - F) * A;
+
+    // iteration limits
+    private static final int MAX_ITERATIONS = 20;
+    private static final double EPSILON = 1.0e-12;
+
+    private double latitude;
+    private double longitude;
+    private long time;
+    private boolean hasSpeed;
+    private float speed;
+    private boolean hasAccuracy;
+    private float accuracy;
+
+    public Location(final String provider) {
+    }
+
+    public double getLatitude() { return latitude; }
+    public void setLatitude(final double latitude) { this.latitude = latitude; }
+    public double getLongitude() { return longitude; }
+    public void setLongitude(final double longitude) { this.longitude = longitude; }
+    public long getTime() { return time; }
+    public void setTime(final long time) { this.time = time; }
+    public boolean hasSpeed() { return hasSpeed; }
+    public float getSpeed() { return speed; }
+    public void setSpeed(final float speed) { this.speed = speed; hasSpeed = true; }
+    public boolean hasAccuracy() { return hasAccuracy; }
+    public float getAccuracy() { return accuracy; }
+    public void setAccuracy(final float accuracy) { this.accuracy = accuracy; hasAccuracy = true; }
+
+    /** Computes the distance in meters between two locations and stores it in results[0] */
+    public static void distanceBetween(final double startLatitude, final double startLongitude,
+                                       final double endLatitude, final double endLongitude, final float[] results) {
+        if (results == null || results.length < 1) {
+            throw new IllegalArgumentException("results is null or has length < 1");
+        }
+        final double lon = Math.toRadians(endLongitude - startLongitude);
+        final double u1 = Math.atan((1 - F) * Math.tan(Math.toRadians(startLatitude)));
+        final double u2 = Math.atan((1 - F) * Math.tan(Math.toRadians(endLatitude)));
+        final double sinU1 = Math.sin(u1);
+        final double cosU1 = Math.cos(u1);
+        final double sinU2 = Math.sin(u2);
+        final double cosU2 = Math.cos(u2);
+
+        double lambda = lon;
+        double sinSigma = 0;
+        double cosSigma = 1;
+        double sigma = 0;
+        double cosSqAlpha = 1;
+        double cos2SigmaM = 0;
+        for (int i = 0; i < MAX_ITERATIONS; ++i) {
+            final double sinLambda = Math.sin(lambda);
+            final double cosLambda = Math.cos(lambda);
+            final double t1 = cosU2 * sinLambda;
+            final double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+            if (sinSigma == 0) {
+                // coincident points
+                results[0] = 0.0f;
+                return;
+            }
+            cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            final double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            cosSqAlpha = 1 - sinAlpha * sinAlpha;
+            // equatorial line: cosSqAlpha = 0
+            cos2SigmaM = cosSqAlpha != 0 ? cosSigma - 2 * sinU1 * sinU2 / cosSqAlpha : 0;
+            final double c = F / 16 * cosSqAlpha * (4 + F * (4 - 3 * cosSqAlpha));
+            final double prevLambda = lambda;
+            lambda = lon + (1 - c) * F * sinAlpha *
+                    (sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+            if (Math.abs(lambda - prevLambda) < EPSILON) {
+                break;
+            }
+        }
+
+        final double uSq = cosSqAlpha * (A * A - B * B) / (B * B);
+        final double a = 1 + uSq / 16384 * (4096 + uSq * (-768 + uSq * (320 - 175 * uSq)));
+        final double b = uSq / 1024 * (256 + uSq * (-128 + uSq * (74 - 47 * uSq)));
+        final double deltaSigma = b * sinSigma * (cos2SigmaM + b / 4 * (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM) -
+                b / 6 * cos2SigmaM * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+        results[0] = (float)(B * a * (sigma - deltaSigma));
+    }
+}
@@ -0,0 +1,117 @@
+package android.os;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Off-device replacement of Android's Parcel class for benchmarks.
+ *
+ * Stores values in a growing heap buffer. Like on Android, primitives are padded to four bytes and
+ * Parcelables are written with their class name so that reading them requires a reflective lookup
+ * of their CREATOR.
+ */
+public final class Parcel {
+    private ByteBuffer buffer = ByteBuffer.allocate(256).order(ByteOrder.nativeOrder());
+    private int dataSize = 0;
+
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public void recycle() {
+        buffer.clear();
+        dataSize = 0;
+    }
+
+    public int dataSize() {
+        return dataSize;
+    }
+
+    public void setDataPosition(final int pos) {
+        buffer.position(pos);
+    }
+
+    public void writeByte(final byte val) { ensureCapacity(4).putInt(val); }
+    public void writeInt(final int val) { ensureCapacity(4).putInt(val); }
+    public void writeLong(final long val) { ensureCapacity(8).putLong(val); }
+    public void writeFloat(final float val) { ensureCapacity(4).putFloat(val); }
+    public void writeDouble(final double val) { ensureCapacity(8).putDouble(val); }
+
+    public byte readByte() { return (byte)buffer.getInt(); }
+    public int readInt() { return buffer.getInt(); }
+    public long readLong() { return buffer.getLong(); }
+    public float readFloat() { return buffer.getFloat(); }
+    public double readDouble() { return buffer.getDouble(); }
+
+    public void writeString(final String val) {
+        writeInt(val.length());
+        for (int i = 0; i < val.length(); ++i) {
+            ensureCapacity(2).putChar(val.charAt(i));
+        }
+        // pad to four bytes
+        if (val.length() % 2 != 0) {
+            ensureCapacity(2).putChar('\0');
+        }
+    }
+
+    public String readString() {
+        final int length = readInt();
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            chars[i] = buffer.getChar();
+        }
+        if (length % 2 != 0) {
+            buffer.getChar();
+        }
+        return new String(chars);
+    }
+
+    public void writeByteArray(final byte[] val) {
+        writeInt(val.length);
+        // pad to four bytes
+        ensureCapacity((val.length + 3) & ~3).put(val);
+        buffer.position(buffer.position() + ((4 - val.length % 4) & 3));
+    }
+
+    public byte[] createByteArray() {
+        final byte[] val = new byte[readInt()];
+        buffer.get(val);
+        buffer.position(buffer.position() + ((4 - val.length % 4) & 3));
+        return val;
+    }
+
+    public void writeParcelable(final Parcelable p, final int flags) {
+        writeString(p.getClass().getName());
+        p.writeToParcel(this, flags);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T readParcelable(final ClassLoader loader) {
+        final String name = readString();
+        try {
+            final Class<?> c = Class.forName(name, false, loader);
+            final java.lang.reflect.Field field = c.getField("CREATOR");
+            // the app's Parcelables are package-private
+            field.setAccessible(true);
+            final Parcelable.Creator<?> creator = (Parcelable.Creator<?>)field.get(null);
+            return (T)creator.createFromParcel(this);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("could not read Parcelable " + name, e);
+        }
+    }
+
+    private ByteBuffer ensureCapacity(final int bytes) {
+        if (buffer.remaining() < bytes) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes))
+                    .order(ByteOrder.nativeOrder());
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        dataSize = Math.max(dataSize, buffer.position() + bytes);
+        return buffer;
+    }
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/** Off-device replacement of Android's Parcelable interface for benchmarks */
+public interface Parcelable {
+    int describeContents();
+
+    void writeToParcel(Parcel dest, int flags);
+
+    interface Creator<T> {
+        T createFromParcel(Parcel source);
+
+        T[] newArray(int size);
+    }
+}
@@ -0,0 +1,18 @@
+package android.util;
+
+/** Off-device replacement of Android's Log class for benchmarks, only warnings and errors are printed */
+public final class Log {
+    private Log() {
+    }
+
+    public static int v(final String tag, final String msg) { return 0; }
+    public static int d(final String tag, final String msg) { return 0; }
+    public static int i(final String tag, final String msg) { return 0; }
+    public static int w(final String tag, final String msg) { return print("W", tag, msg); }
+    public static int e(final String tag, final String msg) { return print("E", tag, msg); }
+
+    private static int print(final String level, final String tag, final String msg) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        return 0;
+    }
+}